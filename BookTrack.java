@@ -1,4 +1,51 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 // KRISTEL'S PART
 // CUSTOM EXCEPTIONS
@@ -6,241 +53,5655 @@ class InvalidUserInputException extends Exception {
     public InvalidUserInputException(String msg) {
         super(msg);
     }
-}
+}
+
+class BookNotFoundException extends Exception {
+    // No stack trace: this is an expected outcome of a search, and callers
+    // only ever show the message.
+    public BookNotFoundException(String msg) {
+        super(msg, null, false, false);
+    }
+}
+
+// ABSTRACT USER CLASS
+abstract class User {
+    private String name;
+    private String userId;
+    private int maxBorrowLimit;
+    private final AtomicInteger currentlyBorrowed = new AtomicInteger();
+
+    public User(String name, String userId, int maxBorrowLimit) {
+        this.name = name;
+        this.userId = userId;
+        this.maxBorrowLimit = maxBorrowLimit;
+    }
+
+    public String getName() { return name; }
+    public String getUserId() { return userId; }
+    public int getMaxBorrowLimit() { return maxBorrowLimit; }
+    public int getCurrentlyBorrowed() { return currentlyBorrowed.get(); }
+
+    public void incrementBorrowed() { currentlyBorrowed.incrementAndGet(); }
+
+    public void decrementBorrowed() {
+        int n;
+        do {
+            n = currentlyBorrowed.get();
+            if (n == 0) return;
+        } while (!currentlyBorrowed.compareAndSet(n, n - 1));
+    }
+
+    // Takes a borrow slot only if canBorrow allows it, as one atomic step,
+    // so two desks cannot both push a user past their limit.
+    public boolean tryIncrementBorrowed() {
+        int n;
+        do {
+            n = currentlyBorrowed.get();
+            if (!canBorrow(n)) return false;
+        } while (!currentlyBorrowed.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    // Abstract method for polymorphism
+    public abstract boolean canBorrow(int currentlyBorrowed);
+
+    // How long this type of user may keep a book
+    public abstract int getLoanPeriodDays();
+}
+
+// SUBCLASSES
+class Student extends User {
+    public Student(String name, String id) {
+        super(name, id, 3);
+    }
+
+    @Override
+    public boolean canBorrow(int borrowed) {
+        return borrowed < 3;
+    }
+
+    @Override
+    public int getLoanPeriodDays() {
+        return 14;
+    }
+}
+
+class Teacher extends User {
+    public Teacher(String name, String id) {
+        super(name, id, 5);
+    }
+
+    @Override
+    public boolean canBorrow(int borrowed) {
+        return borrowed < 5;
+    }
+
+    @Override
+    public int getLoanPeriodDays() {
+        return 30;
+    }
+}
+
+class Guest extends User {
+    public Guest(String name, String id) {
+        super(name, id, 1);
+    }
+
+    @Override
+    public boolean canBorrow(int borrowed) {
+        return borrowed < 1;
+    }
+
+    @Override
+    public int getLoanPeriodDays() {
+        return 7;
+    }
+}
+
+// BOOK CLASS
+// A Book is a lightweight view of one row in a CatalogStore; all of its state
+// lives in the store's columns. A book created with new Book(title, author)
+// only holds its title and author until BookManager.addBook puts it in a catalog.
+class Book {
+    private CatalogStore store; // null until added to a catalog
+    private int id = -1;        // row in the store, set by addBook
+    private String title;       // only used while detached
+    private String author;
+
+    public Book(String title, String author) {
+        this.title = title;
+        this.author = author;
+    }
+
+    Book(CatalogStore store, int id) {
+        this.store = store;
+        this.id = id;
+    }
+
+    public String getTitle() { return store != null ? store.title(id) : title; }
+    public String getAuthor() { return store != null ? store.author(id) : author; }
+    public boolean isAvailable() { return store == null || store.isAvailable(id); }
+    public String getBorrowerId() { return store != null ? store.borrower(id) : null; }
+    public int getId() { return id; }
+
+    // When the current loan started (epoch millis), or 0 if the book is on the shelf.
+    public long getLoanedAt() { return store != null ? store.loanedAt(id) : 0; }
+
+    // When the book is due back (or, while on hold, when the hold lapses); 0 if on the shelf.
+    public long getDueAt() {
+        Deadline d = store == null ? null : store.deadline(id);
+        return d == null ? 0 : d.dueAt;
+    }
+
+    // Assigned to the next user in line but not picked up yet.
+    public boolean isOnHold() {
+        Deadline d = store == null ? null : store.deadline(id);
+        return d != null && d.hold;
+    }
+
+    public boolean isOverdue() {
+        Deadline d = store == null ? null : store.deadline(id);
+        return d != null && d.overdue;
+    }
+
+    // Transferred to another branch; this view no longer names a catalog book.
+    public boolean isWithdrawn() {
+        return store != null && store.isWithdrawn(id);
+    }
+
+    void attach(CatalogStore store, int id) {
+        this.store = store;
+        this.id = id;
+        this.title = null;
+        this.author = null;
+    }
+
+    public void borrowBook(String userId) {
+        borrowBook(userId, System.currentTimeMillis());
+    }
+
+    public void borrowBook(String userId, long loanedAt) {
+        catalog().setBorrower(id, userId, loanedAt);
+    }
+
+    public void returnBook() {
+        catalog().setBorrower(id, null, 0);
+    }
+
+    // Returns false if the user is already in line for this book.
+    public boolean addReservation(String userId) {
+        ReservationQueue queue = catalog().queue(id);
+        if (queue == null) {
+            queue = new ReservationQueue();
+            store.setQueue(id, queue);
+        }
+        return queue.add(userId);
+    }
+
+    public String popReservation() {
+        ReservationQueue queue = catalog().queue(id);
+        if (queue == null) return null;
+        String next = queue.poll();
+        if (queue.size() == 0) store.setQueue(id, null); // idle books keep no queue
+        return next;
+    }
+
+    public int getReservationCount() {
+        ReservationQueue queue = store == null ? null : store.queue(id);
+        return queue == null ? 0 : queue.size();
+    }
+
+    // 1-based place of the user in line, or 0 if they have no reservation.
+    public int getReservationPosition(String userId) {
+        ReservationQueue queue = store == null ? null : store.queue(id);
+        return queue == null ? 0 : queue.positionOf(userId);
+    }
+
+    public String[] getReservations() {
+        ReservationQueue queue = store == null ? null : store.queue(id);
+        return queue == null ? new String[0] : queue.toArray();
+    }
+
+    CatalogStore store() { return store; }
+
+    private CatalogStore catalog() {
+        if (store == null) throw new IllegalStateException("Book '" + title + "' has not been added to the catalog.");
+        return store;
+    }
+
+    // Two views are the same book if they point at the same row.
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Book) || store == null) return false;
+        Book other = (Book) o;
+        return store == other.store && id == other.id;
+    }
+
+    @Override
+    public int hashCode() {
+        return store == null ? System.identityHashCode(this) : id;
+    }
+}
+
+// CATALOG STORE
+// Column-per-field storage for the catalog, split into fixed-size pages so it
+// grows without copying and a row's slots never move: circulation can write
+// them under a book's stripe lock while addBook appends new pages.
+// Per book: title, deadline and queue references, author and borrower ids,
+// the loan start time and availability and withdrawn bits: 28 bytes with
+// compressed references, plus the title String itself. Titles are not kept
+// case-folded; searches fold them as they compare (see titleContains).
+// Authors and borrowers are interned: each distinct name or user ID is
+// stored once per store and rows hold its index.
+//
+// The first rows may come from a CatalogImage (see attach). Their pages are
+// created when a row is first read by title or changed, and their titles are
+// decoded one at a time as they are read; until then a row is on the shelf
+// with nothing attached, which the readers below answer without the page.
+class CatalogStore {
+    static final int PAGE_BITS = 14;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final class Page {
+        final String[] titles = new String[PAGE_SIZE];
+        final int[] authorIds = new int[PAGE_SIZE];
+        final int[] borrowers = new int[PAGE_SIZE]; // index into borrowerIds + 1; 0 when on the shelf
+        final long[] loanedAt = new long[PAGE_SIZE];
+        final Deadline[] deadlines = new Deadline[PAGE_SIZE]; // null unless lent
+        final ReservationQueue[] queues = new ReservationQueue[PAGE_SIZE]; // null unless reserved
+        final AtomicLongArray onShelf = new AtomicLongArray(PAGE_SIZE / 64); // bit set = available
+        final long[] withdrawn = new long[PAGE_SIZE / 64]; // bit set = transferred away
+
+        Page() { }
+
+        // Page of image rows starting at first: authors copied, every row on the shelf.
+        Page(CatalogImage image, int first) {
+            int n = Math.min(PAGE_SIZE, image.rows - first);
+            for (int slot = 0; slot < n; slot++) authorIds[slot] = image.authorId(first + slot);
+            for (int word = 0; word * 64 < n; word++) {
+                onShelf.set(word, n - word * 64 >= 64 ? -1L : (1L << (n - word * 64)) - 1);
+            }
+        }
+    }
+
+    private volatile Page[] pages = new Page[0];
+    private int size = 0;
+
+    private CatalogImage image; // source of rows [0, imageRows); null without one
+    private int imageRows = 0;
+
+    // Authors are interned: each distinct name is stored once and rows hold its index.
+    private volatile String[] authors = new String[64];
+    private int authorCount = 0;
+    private final HashMap<String, Integer> authorIndex = new HashMap<>();
+
+    // Every user who has borrowed from this store. Loans are made under
+    // stripe locks, so new IDs are added under the index's own monitor.
+    private volatile String[] borrowerIds = new String[64];
+    private int borrowerCount = 0;
+    private final ConcurrentHashMap<String, Integer> borrowerIndex = new ConcurrentHashMap<>();
+
+    public int size() { return size; }
+
+    // Makes the image's books the first rows of this empty store, without
+    // reading any of them yet. Call before the store is shared.
+    void attach(CatalogImage image) {
+        if (size != 0) throw new IllegalStateException("A catalog image can only be attached to an empty catalog");
+        this.image = image;
+        imageRows = image.rows;
+        size = image.rows;
+        pages = new Page[(image.rows + PAGE_MASK) >>> PAGE_BITS];
+        authors = new String[image.authors + 64];
+        authorCount = image.authors;
+    }
+
+    // Appends a row and returns its id. Single writer: callers hold the catalog lock.
+    int add(String title, String author) {
+        int id = size;
+        if ((id >>> PAGE_BITS) == pages.length) {
+            // loadPage fills in pages concurrently; neither may work on a stale array
+            synchronized (this) {
+                Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+                grown[pages.length] = new Page();
+                pages = grown;
+            }
+        }
+        Page page = page(id);
+        int slot = id & PAGE_MASK;
+        page.titles[slot] = title;
+        page.authorIds[slot] = internAuthor(author);
+        setBit(page, slot, true);
+        size++;
+        return id;
+    }
+
+    private int internAuthor(String author) {
+        Integer existing = authorIndex.get(author);
+        if (existing != null) return existing;
+        int inImage = image != null ? image.findAuthor(author) : -1;
+        if (inImage >= 0) {
+            authorIndex.put(author, inImage);
+            return inImage;
+        }
+        if (authorCount == authors.length) authors = Arrays.copyOf(authors, authorCount * 2);
+        authors[authorCount] = author;
+        authorIndex.put(author, authorCount);
+        return authorCount++;
+    }
+
+    public int authorCount() { return authorCount; }
+
+    private int internBorrower(String userId) {
+        Integer existing = borrowerIndex.get(userId);
+        if (existing != null) return existing;
+        synchronized (borrowerIndex) {
+            existing = borrowerIndex.get(userId);
+            if (existing != null) return existing;
+            String[] ids = borrowerCount == borrowerIds.length ? Arrays.copyOf(borrowerIds, borrowerCount * 2) : borrowerIds;
+            ids[borrowerCount] = userId;
+            borrowerIds = ids; // publish the new entry before its index
+            borrowerIndex.put(userId, borrowerCount);
+            return borrowerCount++;
+        }
+    }
+
+    // The row's page, created on first use for image rows.
+    private Page page(int id) {
+        Page page = pages[id >>> PAGE_BITS];
+        return page != null ? page : loadPage(id >>> PAGE_BITS);
+    }
+
+    private synchronized Page loadPage(int index) {
+        Page page = pages[index];
+        if (page == null) {
+            page = new Page(image, index << PAGE_BITS);
+            pages[index] = page;
+        }
+        return page;
+    }
+
+    // The row's page, or null for an image row that has not been used yet.
+    private Page loaded(int id) {
+        return pages[id >>> PAGE_BITS];
+    }
+
+    public String title(int id) {
+        Page page = page(id);
+        String title = page.titles[id & PAGE_MASK];
+        return title != null ? title : decodeTitle(page, id);
+    }
+
+    // Case-folded title. Allocates for titles with capitals; scans should use
+    // titleContains instead.
+    public String lowerTitle(int id) {
+        return title(id).toLowerCase();
+    }
+
+    // Whether the title contains search (already lowercase), folding the
+    // title one char at a time rather than copying it.
+    public boolean titleContains(int id, String search) {
+        String title = title(id);
+        int n = search.length();
+        next:
+        for (int i = 0, last = title.length() - n; i <= last; i++) {
+            for (int j = 0; j < n; j++) {
+                if (Character.toLowerCase(title.charAt(i + j)) != search.charAt(j)) continue next;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Racing decodes store equal strings, so either may win.
+    private String decodeTitle(Page page, int id) {
+        String title = image.title(id);
+        page.titles[id & PAGE_MASK] = title;
+        return title;
+    }
+
+    public String author(int id) {
+        return authorName(authorId(id));
+    }
+
+    String authorName(int author) {
+        String[] names = authors;
+        String name = names[author];
+        if (name == null && image != null && author < image.authors) {
+            name = image.author(author);
+            names[author] = name;
+        }
+        return name;
+    }
+
+    public int authorId(int id) {
+        Page page = loaded(id);
+        return page != null ? page.authorIds[id & PAGE_MASK] : image.authorId(id);
+    }
+
+    public boolean isAvailable(int id) {
+        Page page = loaded(id);
+        int slot = id & PAGE_MASK;
+        return page == null || (page.onShelf.get(slot >>> 6) & (1L << slot)) != 0;
+    }
+
+    public String borrower(int id) {
+        Page page = loaded(id);
+        int borrower = page != null ? page.borrowers[id & PAGE_MASK] : 0;
+        return borrower == 0 ? null : borrowerIds[borrower - 1];
+    }
+
+    // Withdrawn rows keep their id (and title) but are no longer in the catalog.
+    public boolean isWithdrawn(int id) {
+        Page page = loaded(id);
+        int slot = id & PAGE_MASK;
+        return page != null && (page.withdrawn[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    // Caller holds the catalog write lock and the book's stripe lock.
+    void setWithdrawn(int id) {
+        Page page = page(id);
+        int slot = id & PAGE_MASK;
+        page.withdrawn[slot >>> 6] |= 1L << slot;
+        setBit(page, slot, false);
+    }
+
+    public long loanedAt(int id) {
+        Page page = loaded(id);
+        return page != null ? page.loanedAt[id & PAGE_MASK] : 0;
+    }
+
+    // null borrower = back on the shelf. Caller holds the book's stripe lock.
+    void setBorrower(int id, String userId, long loanedAt) {
+        Page page = page(id);
+        page.borrowers[id & PAGE_MASK] = userId == null ? 0 : internBorrower(userId) + 1;
+        page.loanedAt[id & PAGE_MASK] = loanedAt;
+        setBit(page, id & PAGE_MASK, userId == null);
+    }
+
+    Deadline deadline(int id) {
+        Page page = loaded(id);
+        return page != null ? page.deadlines[id & PAGE_MASK] : null;
+    }
+
+    void setDeadline(int id, Deadline d) {
+        page(id).deadlines[id & PAGE_MASK] = d;
+    }
+
+    ReservationQueue queue(int id) {
+        Page page = loaded(id);
+        return page != null ? page.queues[id & PAGE_MASK] : null;
+    }
+
+    void setQueue(int id, ReservationQueue queue) {
+        page(id).queues[id & PAGE_MASK] = queue;
+    }
+
+    // 64 books share a bitset word but not a stripe lock, hence the CAS.
+    private static void setBit(Page page, int slot, boolean on) {
+        int word = slot >>> 6;
+        long bit = 1L << slot;
+        long old;
+        long updated;
+        do {
+            old = page.onShelf.get(word);
+            updated = on ? old | bit : old & ~bit;
+        } while (old != updated && !page.onShelf.compareAndSet(word, old, updated));
+    }
+}
+
+// RESERVATION QUEUE
+// Growable ring buffer of user IDs: O(1) add and poll, no shifting.
+class ReservationQueue {
+    private static final int SET_THRESHOLD = 8; // below this a scan beats hashing
+
+    private String[] ring = new String[4];
+    private int head = 0;
+    private int size = 0;
+
+    // Only built once the line gets long: user ID -> sequence number it was
+    // enqueued with. With headSeq (sequence of the user at the front) this
+    // answers both "already in line?" and "what position?" without a scan.
+    private HashMap<String, Long> members;
+    private long headSeq = 0;
+
+    public int size() { return size; }
+
+    public boolean add(String userId) {
+        if (contains(userId)) return false;
+        if (size == ring.length) grow();
+        ring[(head + size) & (ring.length - 1)] = userId;
+        size++;
+        if (members != null) {
+            members.put(userId, headSeq + size - 1);
+        } else if (size > SET_THRESHOLD) {
+            members = new HashMap<>();
+            for (int i = 0; i < size; i++) members.put(ring[(head + i) & (ring.length - 1)], headSeq + i);
+        }
+        return true;
+    }
+
+    public String poll() {
+        if (size == 0) return null;
+        String next = ring[head];
+        ring[head] = null;
+        head = (head + 1) & (ring.length - 1);
+        size--;
+        headSeq++;
+        if (members != null) members.remove(next);
+        return next;
+    }
+
+    public boolean contains(String userId) {
+        if (members != null) return members.containsKey(userId);
+        return positionOf(userId) > 0;
+    }
+
+    public int positionOf(String userId) {
+        if (members != null) {
+            Long seq = members.get(userId);
+            return seq == null ? 0 : (int) (seq - headSeq) + 1;
+        }
+        for (int i = 0; i < size; i++) {
+            if (ring[(head + i) & (ring.length - 1)].equals(userId)) return i + 1;
+        }
+        return 0;
+    }
+
+    public String[] toArray() {
+        String[] out = new String[size];
+        for (int i = 0; i < size; i++) out[i] = ring[(head + i) & (ring.length - 1)];
+        return out;
+    }
+
+    private void grow() {
+        ring = Arrays.copyOf(toArray(), ring.length * 2);
+        head = 0;
+    }
+}
+
+// USER DIRECTORY
+// Where circulation looks up the users named in loans and reservations: one
+// UserManager, or every branch's (see BranchNetwork).
+interface UserDirectory {
+    User findUserById(String id);
+}
+
+// USER MANAGER
+class UserManager implements UserDirectory {
+    User[] users = new User[50];
+    int count = 0;
+
+    // Open-addressing index over users[], keyed on userId.
+    // Each slot holds (position in users[] + 1); 0 marks an empty slot.
+    private int[] slots = new int[128];
+
+    // Writers take the write lock; lookups read optimistically and only
+    // fall back to the read lock if an add ran at the same time.
+    private final StampedLock lock = new StampedLock();
+
+    CatalogJournal journal; // null when running without persistence
+    LibraryMetrics metrics; // null when not instrumented
+    ChangeFeed feed;        // null when changes are not published
+
+    public void addUser(User u) throws InvalidUserInputException {
+        long stamp = lock.writeLock();
+        try {
+            if (probe(u.getUserId()) != null) {
+                throw new InvalidUserInputException("User ID '" + u.getUserId() + "' already exists.");
+            }
+            ensureCapacity(count + 1);
+            users[count] = u;
+            insertSlot(u.getUserId(), count);
+            count++;
+            if (journal != null) journal.userAdded(u);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        // outside the lock: publishing waits while the feed is full (see ChangeFeed)
+        if (feed != null) feed.userAdded(u, System.currentTimeMillis());
+    }
+
+    // Bulk load (e.g. a campus roster). The whole batch is rejected if any ID is a duplicate.
+    public void addUsers(User[] batch) throws InvalidUserInputException {
+        long stamp = lock.writeLock();
+        try {
+            ensureCapacity(count + batch.length);
+            int start = count;
+            for (User u : batch) {
+                if (probe(u.getUserId()) != null) {
+                    // roll back the part of the batch already indexed
+                    for (int i = start; i < count; i++) users[i] = null;
+                    count = start;
+                    rebuildSlots(slots.length);
+                    throw new InvalidUserInputException("User ID '" + u.getUserId() + "' already exists.");
+                }
+                users[count] = u;
+                insertSlot(u.getUserId(), count);
+                count++;
+            }
+            if (journal != null) {
+                for (User u : batch) journal.userAdded(u);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        // a roster can be larger than the ring; see addUser
+        if (feed != null) {
+            long now = System.currentTimeMillis();
+            for (User u : batch) feed.userAdded(u, now);
+        }
+    }
+
+    public User findUserById(String id) {
+        if (id == null) return null;
+        LibraryMetrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        long stamp = lock.tryOptimisticRead();
+        User u = probe(id);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                u = probe(id);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (m != null) m.record(LibraryMetrics.Op.FIND_USER, start);
+        return u;
+    }
+
+    // Safe to run against a table that is being modified: it never throws and
+    // always terminates, and findUserById discards the answer in that case.
+    private User probe(String id) {
+        int[] table = slots;
+        User[] all = users;
+        int mask = table.length - 1;
+        int i = spread(id.hashCode()) & mask;
+        for (int probes = 0; probes < table.length; probes++) {
+            int slot = table[i];
+            if (slot == 0 || slot > all.length) return null;
+            User u = all[slot - 1];
+            if (u == null) return null;
+            if (u.getUserId().equals(id)) return u;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > users.length) {
+            users = Arrays.copyOf(users, Math.max(needed, users.length * 2));
+        }
+        // keep the index at most half full so probe chains stay short
+        if (needed * 2 > slots.length) {
+            int size = slots.length;
+            while (needed * 2 > size) size *= 2;
+            rebuildSlots(size);
+        }
+    }
+
+    private void rebuildSlots(int size) {
+        slots = new int[size];
+        for (int i = 0; i < count; i++) {
+            insertSlot(users[i].getUserId(), i);
+        }
+    }
+
+    private void insertSlot(String id, int position) {
+        int mask = slots.length - 1;
+        int i = spread(id.hashCode()) & mask;
+        while (slots[i] != 0) i = (i + 1) & mask;
+        slots[i] = position + 1;
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Users in the order they were added. The stream works on a snapshot of
+    // the roster, so it can be consumed lazily while users keep being added.
+    public Stream<User> streamUsers() {
+        User[] all;
+        int n;
+        long stamp = lock.readLock();
+        try {
+            all = users;
+            n = count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return Arrays.stream(all, 0, n);
+    }
+
+    public void displayUsers() {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+        try {
+            writeUserList(out, streamUsers());
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void writeUserList(Writer out, Stream<User> list) throws IOException {
+        String nl = System.lineSeparator();
+        out.write(nl + "--------------------------------------- USER LIST --------------------------------------" + nl);
+
+        // Header
+        ListingFormatter f = new ListingFormatter(out);
+        f.cell("Name", 50).cell("ID", 10).cell("Borrowed", 10).cell("User Type", 12).endRow();
+        out.write("----------------------------------------------------------------------------------------" + nl);
+
+        Iterator<User> it = list.iterator();
+        while (it.hasNext()) {
+            User u = it.next();
+
+            // Identify user type
+            String type;
+            if (u instanceof Student) type = "Student";
+            else if (u instanceof Teacher) type = "Teacher";
+            else type = "Guest";
+
+            // Print user info in aligned columns
+            f.cell(u.getName(), 50).cell(u.getUserId(), 10).cell(u.getCurrentlyBorrowed(), 10).cell(type, 12).endRow();
+        }
+    }
+}
+
+// ELAINE'S PART
+// OUTCOME OF A CIRCULATION OR BATCH COMMAND
+enum ResultCode {
+    OK,
+    ALREADY_BORROWED,   // borrow: someone else has the book
+    LIMIT_REACHED,      // borrow: user is at their borrow limit
+    NOT_BORROWED,       // return: the book is on the shelf
+    NOT_BORROWER,       // return: a different user has the book
+    ALREADY_RESERVED,   // reserve: user is already in line
+    IN_CIRCULATION,     // transfer: the book is lent, on hold or reserved
+    USER_NOT_FOUND,
+    BOOK_NOT_FOUND,
+    DUPLICATE_USER,
+    INVALID_COMMAND
+}
+
+// GROWABLE INT LIST (used for index posting lists)
+class IntList {
+    int[] data;
+    int size = 0;
+
+    public IntList() { this(4); }
+    public IntList(int capacity) { data = new int[capacity]; }
+
+    public void add(int v) {
+        if (size == data.length) data = Arrays.copyOf(data, size * 2);
+        data[size++] = v;
+    }
+
+    public int get(int i) { return data[i]; }
+    public int size() { return size; }
+    public int last() { return data[size - 1]; }
+
+    // Removes one occurrence of v by moving the last element into its place
+    // (so only for lists whose order does not matter).
+    public boolean removeValue(int v) {
+        for (int i = 0; i < size; i++) {
+            if (data[i] == v) {
+                data[i] = data[--size];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int[] toArray() { return Arrays.copyOf(data, size); }
+}
+
+// LOAN INDEX
+// userId -> ids of the books that user currently has, kept in step with the
+// borrower column by BookManager, so "what does this user have" costs
+// O(loans) instead of a catalog scan. A user's set is locked on its own
+// monitor: two desks may lend different books to the same user at once.
+class LoanIndex {
+    private final ConcurrentHashMap<String, IntList> byUser = new ConcurrentHashMap<>();
+
+    void add(String userId, int bookId) {
+        IntList loans = byUser.computeIfAbsent(userId, k -> new IntList(2));
+        synchronized (loans) {
+            loans.add(bookId);
+        }
+    }
+
+    void remove(String userId, int bookId) {
+        IntList loans = byUser.get(userId);
+        if (loans == null) return;
+        synchronized (loans) {
+            loans.removeValue(bookId);
+        }
+    }
+
+    public int[] loansOf(String userId) {
+        IntList loans = byUser.get(userId);
+        if (loans == null) return new int[0];
+        synchronized (loans) {
+            return loans.toArray();
+        }
+    }
+
+    public int count(String userId) {
+        IntList loans = byUser.get(userId);
+        if (loans == null) return 0;
+        synchronized (loans) {
+            return loans.size();
+        }
+    }
+}
+
+// DUE DATES
+// The pending deadline of one lent book: its due date, or while the book is on
+// hold for the next user in line, the date the hold lapses.
+class Deadline {
+    final int bookId;
+    final String userId;
+    long dueAt;                // epoch millis
+    boolean hold;
+    volatile boolean overdue;  // set once a (non-hold) deadline has passed
+
+    // TimingWheel bookkeeping
+    Deadline prev;
+    Deadline next;
+    int bucket = -1;           // -1 when not scheduled
+    long dueTick;
+
+    Deadline(int bookId, String userId, long dueAt, boolean hold) {
+        this.bookId = bookId;
+        this.userId = userId;
+        this.dueAt = dueAt;
+        this.hold = hold;
+    }
+}
+
+// Hierarchical timing wheel: 4 levels of 64 slots. Level 0 slots are one tick
+// wide, each higher level's slots 64 times wider; an entry sits at the lowest
+// level whose range covers it and moves down a level each time its slot
+// comes round. Schedule and cancel are O(1) (doubly linked slot lists), and
+// advance only visits the slots it passes over.
+class TimingWheel {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 4;
+    private static final int READY = LEVELS * SLOTS; // bucket for entries already due
+
+    private final long tickMillis;
+    private final Deadline[] buckets = new Deadline[READY + 1];
+    private long currentTick = -1; // set by the first call
+    private int size = 0;
+
+    public TimingWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    public synchronized int size() { return size; }
+
+    public synchronized void schedule(Deadline d, long now) {
+        start(now);
+        d.dueTick = (d.dueAt + tickMillis - 1) / tickMillis; // never fire early
+        place(d);
+        size++;
+    }
+
+    public synchronized void cancel(Deadline d) {
+        if (d.bucket < 0) return;
+        unlink(d);
+        size--;
+    }
+
+    // Moves the wheel to now and returns every entry that has come due.
+    public synchronized List<Deadline> advance(long now) {
+        start(now);
+        List<Deadline> fired = new ArrayList<>();
+        long target = now / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            // when a level wraps, pull the next slot of the level above down into the wheel
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) != 0) break;
+                cascade(level * SLOTS + (int) ((currentTick >>> (BITS * level)) & (SLOTS - 1)));
+            }
+            drain((int) (currentTick & (SLOTS - 1)), fired);
+        }
+        drain(READY, fired);
+        return fired;
+    }
+
+    private void start(long now) {
+        if (currentTick < 0) currentTick = now / tickMillis;
+    }
+
+    private void place(Deadline d) {
+        long delta = d.dueTick - currentTick;
+        int bucket;
+        if (delta <= 0) {
+            bucket = READY;
+        } else {
+            int level = 0;
+            while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) level++;
+            // beyond the top level: park in its farthest slot and re-place when it comes round
+            long tick = delta >= (1L << (BITS * LEVELS)) ? currentTick + (1L << (BITS * LEVELS)) - 1 : d.dueTick;
+            bucket = level * SLOTS + (int) ((tick >>> (BITS * level)) & (SLOTS - 1));
+        }
+        d.bucket = bucket;
+        d.prev = null;
+        d.next = buckets[bucket];
+        if (d.next != null) d.next.prev = d;
+        buckets[bucket] = d;
+    }
+
+    private void unlink(Deadline d) {
+        if (d.prev != null) d.prev.next = d.next;
+        else buckets[d.bucket] = d.next;
+        if (d.next != null) d.next.prev = d.prev;
+        d.prev = null;
+        d.next = null;
+        d.bucket = -1;
+    }
+
+    private void cascade(int bucket) {
+        Deadline d = buckets[bucket];
+        buckets[bucket] = null;
+        while (d != null) {
+            Deadline next = d.next;
+            place(d);
+            d = next;
+        }
+    }
+
+    private void drain(int bucket, List<Deadline> fired) {
+        Deadline d = buckets[bucket];
+        buckets[bucket] = null;
+        while (d != null) {
+            Deadline next = d.next;
+            d.prev = null;
+            d.next = null;
+            d.bucket = -1;
+            fired.add(d);
+            size--;
+            d = next;
+        }
+    }
+}
+
+// BOOK MANAGER
+// FUZZY SEARCH
+// Levenshtein automaton for one query term and an edit budget. Its states
+// are the rows of the edit-distance table: feeding a character to a row gives
+// the next row, and a row whose smallest entry exceeds the budget is dead,
+// so no word extending that prefix can match. Only the band of width
+// 2 * maxEdits + 1 around the diagonal is computed.
+class LevenshteinAutomaton {
+    private final char[] query;
+    final int maxEdits;
+
+    public LevenshteinAutomaton(String query, int maxEdits) {
+        this.query = query.toCharArray();
+        this.maxEdits = maxEdits;
+    }
+
+    public int[] start() {
+        int[] row = new int[query.length + 1];
+        for (int i = 0; i < row.length; i++) row[i] = Math.min(i, maxEdits + 1);
+        return row;
+    }
+
+    // Row after consuming c at position depth (the prefix length before c).
+    // into must be as long as prev; returns into.
+    public int[] step(int[] prev, int depth, char c, int[] into) {
+        int cap = maxEdits + 1;
+        int from = Math.max(1, depth + 1 - maxEdits);
+        int to = Math.min(query.length, depth + 1 + maxEdits);
+        into[0] = Math.min(depth + 1, cap);
+        for (int i = 1; i < from; i++) into[i] = cap;
+        for (int i = from; i <= to; i++) {
+            int cost = query[i - 1] == c ? 0 : 1;
+            int v = Math.min(Math.min(prev[i - 1] + cost, prev[i] + 1), into[i - 1] + 1);
+            into[i] = Math.min(v, cap);
+        }
+        for (int i = to + 1; i < into.length; i++) into[i] = cap;
+        return into;
+    }
+
+    public boolean canMatch(int[] row) {
+        for (int v : row) {
+            if (v <= maxEdits) return true;
+        }
+        return false;
+    }
+
+    // Edit distance of the consumed word, or maxEdits + 1 if it is over budget.
+    public int distance(int[] row) {
+        return row[query.length];
+    }
+}
+
+// Words of one field (titles or author names) and, for each, the ascending
+// ids that contain it. For fuzzy lookups the words are also kept sorted, so
+// words sharing a prefix are adjacent and a dead automaton state skips them
+// all with one search. New words go to a small unsorted run that is merged
+// into the sorted one once it grows past 1024 words (or 1/256 of the sorted
+// run, for very large dictionaries), keeping inserts cheap during bulk loads
+// while the part scanned word by word per query stays short. Numbers are
+// only ever matched exactly, so they are kept out of the sorted run.
+//
+// With a catalog image (attach), the image's words stay in the file: a
+// word's ids are copied into postings the first time it is looked up, and
+// the image's words join the sorted run at the first fuzzy lookup.
+class TermDictionary {
+    private final HashMap<String, IntList> postings = new HashMap<>();
+    private String[] sorted = new String[0];
+    private String[] recent = new String[256];
+    private int recentCount = 0;
+    private final List<int[]> rows = new ArrayList<>();
+    private CatalogImage.Terms base; // null without an image
+    private boolean baseSorted = false;
+
+    // Call while the dictionary is empty.
+    void attach(CatalogImage.Terms terms) {
+        base = terms;
+    }
+
+    // Readers may load from the image concurrently, hence synchronized (as collect is).
+    public synchronized IntList postings(String term) {
+        return posting(term);
+    }
+
+    private IntList posting(String term) {
+        IntList posting = postings.get(term);
+        if (posting == null && base != null) {
+            int i = base.find(term);
+            if (i >= 0) {
+                posting = base.ids.copy(i);
+                postings.put(term, posting);
+            }
+        }
+        return posting;
+    }
+
+    // ids must arrive in ascending order.
+    public void add(String term, int id) {
+        IntList posting = posting(term);
+        if (posting == null) {
+            posting = new IntList(1);
+            postings.put(term, posting);
+            if (!isNumber(term)) {
+                if (recentCount == recent.length) recent = Arrays.copyOf(recent, recentCount * 2);
+                recent[recentCount++] = term;
+                if (recentCount > Math.max(1024, sorted.length / 256)) mergeRecent();
+            }
+        }
+        if (posting.size() == 0 || posting.last() != id) posting.add(id);
+    }
+
+    static boolean isNumber(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            if (!Character.isDigit(term.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private void mergeRecent() {
+        Arrays.sort(recent, 0, recentCount);
+        String[] merged = new String[sorted.length + recentCount];
+        int i = 0, j = 0, k = 0;
+        while (i < sorted.length && j < recentCount) {
+            merged[k++] = sorted[i].compareTo(recent[j]) <= 0 ? sorted[i++] : recent[j++];
+        }
+        while (i < sorted.length) merged[k++] = sorted[i++];
+        while (j < recentCount) merged[k++] = recent[j++];
+        sorted = merged;
+        recent = new String[256];
+        recentCount = 0;
+    }
+
+    // Adds every word within the automaton's edit budget to out. Not thread
+    // safe (it reuses row buffers); callers hold the catalog write lock or
+    // synchronize on the dictionary.
+    public void collect(LevenshteinAutomaton a, boolean author, List<TermMatch> out) {
+        if (base != null && !baseSorted) sortBase();
+        int[] start = a.start();
+        row(0, start.length);
+        System.arraycopy(start, 0, rows.get(0), 0, start.length);
+
+        String prev = "";
+        int valid = 0; // rows[0..valid] belong to prefixes of prev
+        int i = 0;
+        while (i < sorted.length) {
+            String t = sorted[i];
+            int depth = Math.min(commonPrefix(prev, t), valid);
+            boolean dead = false;
+            while (depth < t.length()) {
+                int[] next = a.step(rows.get(depth), depth, t.charAt(depth), row(depth + 1, start.length));
+                depth++;
+                if (!a.canMatch(next)) {
+                    dead = true;
+                    break;
+                }
+            }
+            prev = t;
+            valid = depth;
+            if (dead) {
+                // every following word that starts with t[0..depth) is dead too
+                i = skipPrefix(t, depth, i + 1);
+                continue;
+            }
+            int d = a.distance(rows.get(depth));
+            if (d <= a.maxEdits) out.add(new TermMatch(t, author, posting(t), d));
+            i++;
+        }
+
+        for (int r = 0; r < recentCount; r++) {
+            String t = recent[r];
+            int[] cur = rows.get(0);
+            boolean dead = false;
+            for (int depth = 0; depth < t.length() && !dead; depth++) {
+                cur = a.step(cur, depth, t.charAt(depth), row(depth + 1, start.length));
+                dead = !a.canMatch(cur);
+            }
+            if (!dead && a.distance(cur) <= a.maxEdits) out.add(new TermMatch(t, author, postings.get(t), a.distance(cur)));
+        }
+    }
+
+    // Merges the image's words (already in order, numbers left out) into the sorted run.
+    private void sortBase() {
+        String[] words = new String[base.words.size()];
+        int n = 0;
+        for (int i = 0; i < words.length; i++) {
+            String w = base.words.get(i);
+            if (!isNumber(w)) words[n++] = w;
+        }
+        String[] merged = new String[sorted.length + n];
+        int i = 0, j = 0, k = 0;
+        while (i < sorted.length && j < n) {
+            merged[k++] = sorted[i].compareTo(words[j]) <= 0 ? sorted[i++] : words[j++];
+        }
+        while (i < sorted.length) merged[k++] = sorted[i++];
+        while (j < n) merged[k++] = words[j++];
+        sorted = merged;
+        baseSorted = true;
+    }
+
+    // First index at or after from whose word does not start with
+    // prefix[0..length). Words with that prefix are contiguous from `from`;
+    // gallops forward, since most such runs are short.
+    private int skipPrefix(String prefix, int length, int from) {
+        int lo = from;
+        int step = 1;
+        int hi = from;
+        while (hi < sorted.length && sorted[hi].regionMatches(0, prefix, 0, length)) {
+            lo = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        hi = Math.min(hi, sorted.length);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid].regionMatches(0, prefix, 0, length)) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private int[] row(int depth, int width) {
+        while (rows.size() <= depth) rows.add(new int[width]);
+        int[] r = rows.get(depth);
+        if (r.length != width) {
+            r = new int[width];
+            rows.set(depth, r);
+        }
+        return r;
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) i++;
+        return i;
+    }
+}
+
+// A dictionary word that matched a query term.
+class TermMatch {
+    final String term;
+    final boolean author; // matched an author name rather than a title
+    final IntList ids;    // book ids, or author ids for author matches
+    final int distance;
+
+    TermMatch(String term, boolean author, IntList ids, int distance) {
+        this.term = term;
+        this.author = author;
+        this.ids = ids;
+        this.distance = distance;
+    }
+}
+
+// Typo-tolerant search over title and author words, used by
+// BookManager.fuzzySearch. Each query word may be misspelt by 1 edit (4-6
+// letters) or 2 (7 or more); shorter words and numbers must match exactly.
+// A book matches when every query word matches a word of its title or its
+// author, and is scored by the sum over query words of the best match's
+// weight: rarer words weigh more, each edit costs 40% and author matches
+// count 80% of title matches. Ties go to titles containing the query as
+// typed, then to catalog order.
+//
+// Candidates come, in id order, from the query word with the fewest matching
+// books; the other words are looked up in their sorted id lists with a
+// forward-only search, so a common word such as "the" is never scanned in
+// full. Because ties go to catalog order, the scan stops as soon as k hits
+// reach the best score the query allows.
+class FuzzyIndex {
+    private final CatalogStore store;
+    private final TermDictionary titleWords = new TermDictionary();
+    private final TermDictionary authorWords = new TermDictionary(); // ids are author ids
+    private IntList[] booksByAuthor = new IntList[64];
+    private CatalogImage image; // null without one
+
+    public FuzzyIndex(CatalogStore store) {
+        this.store = store;
+    }
+
+    // Searches the image's words and books as well; call while the index is empty.
+    void attach(CatalogImage image) {
+        this.image = image;
+        titleWords.attach(image.titleTerms);
+        authorWords.attach(image.authorTerms);
+        booksByAuthor = new IntList[image.authors + 64];
+    }
+
+    // Called for each new book, in id order, under the catalog write lock.
+    void add(int id) {
+        for (String w : words(store.lowerTitle(id))) titleWords.add(w, id);
+
+        int author = store.authorId(id);
+        if (author >= booksByAuthor.length) booksByAuthor = Arrays.copyOf(booksByAuthor, Math.max(author + 1, booksByAuthor.length * 2));
+        IntList books = booksOf(author);
+        if (books == null) {
+            books = booksByAuthor[author] = new IntList(1);
+            for (String w : words(store.author(id).toLowerCase())) authorWords.add(w, author);
+        }
+        books.add(id);
+    }
+
+    // The author's books; an image author's are copied in on first use, by
+    // whichever reader gets there first. null for an author with no books.
+    private synchronized IntList booksOf(int author) {
+        IntList books = booksByAuthor[author];
+        if (books == null && image != null && author < image.authors) {
+            books = booksByAuthor[author] = image.authorBooks.copy(author);
+        }
+        return books;
+    }
+
+    static List<String> words(String lower) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean letter = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (letter && start < 0) start = i;
+            else if (!letter && start >= 0) {
+                words.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    static int maxEdits(String word) {
+        if (TermDictionary.isNumber(word)) return 0;
+        return word.length() <= 3 ? 0 : word.length() <= 6 ? 1 : 2;
+    }
+
+    // Top k books, best first. Caller holds the catalog read lock.
+    public Hit[] search(String query, int k) {
+        String lower = query.toLowerCase();
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(words(lower)));
+        if (terms.isEmpty() || k <= 0) return new Hit[0];
+
+        int n = store.size();
+        List<List<TermMatch>> matches = new ArrayList<>();
+        int driver = -1;
+        long driverSize = Long.MAX_VALUE;
+        boolean allExact = true;
+        for (String term : terms) {
+            List<TermMatch> m = expand(term);
+            if (m.isEmpty()) return new Hit[0]; // every word must match something
+            long size = 0;
+            boolean exact = false;
+            for (TermMatch tm : m) {
+                size += bookCount(tm);
+                exact |= tm.distance == 0;
+            }
+            allExact &= exact;
+            if (size < driverSize) {
+                driver = matches.size();
+                driverSize = size;
+            }
+            matches.add(m);
+        }
+
+        float[][] weights = new float[terms.size()][];
+        float maxScore = 0;
+        for (int t = 0; t < terms.size(); t++) {
+            List<TermMatch> m = matches.get(t);
+            weights[t] = new float[m.size()];
+            float best = 0;
+            for (int i = 0; i < m.size(); i++) {
+                weights[t][i] = weight(m.get(i), n);
+                best = Math.max(best, weights[t][i]);
+            }
+            maxScore += best;
+        }
+        // a title can only contain the query as typed if each word occurs exactly
+        boolean verbatimPossible = allExact;
+
+        // Candidates arrive in ascending order, so each title id list is
+        // searched forward from where the previous lookup ended.
+        int[][] cursors = new int[terms.size()][];
+        for (int t = 0; t < terms.size(); t++) cursors[t] = new int[matches.get(t).size()];
+
+        // worst hit at the head, so it is the one dropped when a better one arrives
+        PriorityQueue<Hit> top = new PriorityQueue<>(k + 1, Collections.reverseOrder());
+        IdMerge candidates = new IdMerge(driverLists(matches.get(driver)));
+        for (int id = candidates.next(); id >= 0; id = candidates.next()) {
+            if (store.isWithdrawn(id)) continue;
+            float score = 0;
+            for (int t = 0; t < terms.size() && score >= 0; t++) {
+                float best = 0;
+                List<TermMatch> m = matches.get(t);
+                for (int i = 0; i < m.size(); i++) {
+                    if (weights[t][i] > best && contains(m.get(i), id, cursors[t], i)) best = weights[t][i];
+                }
+                score = best > 0 ? score + best : -1;
+            }
+            if (score < 0 || (top.size() == k && score < top.peek().score)) continue;
+
+            Hit hit = new Hit(id, score, verbatimPossible && store.titleContains(id, lower));
+            if (top.size() < k) {
+                top.add(hit);
+            } else if (hit.compareTo(top.peek()) < 0) {
+                top.poll();
+                top.add(hit);
+            }
+            // Later candidates have higher ids, so once k hits have the best
+            // possible score (and verbatim match, where one can exist) none can beat them.
+            if (top.size() == k && top.peek().score >= maxScore && (top.peek().verbatim || !verbatimPossible)) break;
+        }
+
+        Hit[] result = new Hit[top.size()];
+        for (int i = result.length - 1; i >= 0; i--) result[i] = top.poll();
+        return result;
+    }
+
+    // Orders best first: higher score, then titles containing the query as
+    // typed, then catalog order.
+    static final class Hit implements Comparable<Hit> {
+        final int id;
+        final float score;
+        final boolean verbatim;
+
+        Hit(int id, float score, boolean verbatim) {
+            this.id = id;
+            this.score = score;
+            this.verbatim = verbatim;
+        }
+
+        @Override
+        public int compareTo(Hit o) {
+            int c = Float.compare(o.score, score);
+            if (c == 0) c = Boolean.compare(o.verbatim, verbatim);
+            return c != 0 ? c : Integer.compare(id, o.id);
+        }
+    }
+
+    // Ascending book id lists covering the driver word's matches.
+    private List<IntList> driverLists(List<TermMatch> m) {
+        List<IntList> lists = new ArrayList<>();
+        for (TermMatch tm : m) {
+            if (!tm.author) {
+                lists.add(tm.ids);
+                continue;
+            }
+            for (int i = 0; i < tm.ids.size(); i++) lists.add(booksOf(tm.ids.get(i)));
+        }
+        return lists;
+    }
+
+    // Distinct ids of several ascending lists, in ascending order, merged
+    // lazily so a search that stops early never reads the rest.
+    private static final class IdMerge {
+        private final IntList[] lists;
+        private final int[] pos;
+        private final int[] heap; // list indexes, ordered by their current id
+        private int heapSize;
+        private int last = -1;
+
+        IdMerge(List<IntList> sources) {
+            lists = sources.toArray(new IntList[0]);
+            pos = new int[lists.length];
+            heap = new int[lists.length];
+            for (int i = 0; i < lists.length; i++) {
+                if (lists[i].size() > 0) heap[heapSize++] = i;
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--) siftDown(i);
+        }
+
+        // Next id, or -1 when all lists are used up.
+        int next() {
+            while (heapSize > 0) {
+                int list = heap[0];
+                int id = lists[list].get(pos[list]++);
+                if (pos[list] == lists[list].size()) heap[0] = heap[--heapSize];
+                siftDown(0);
+                if (id != last) {
+                    last = id;
+                    return id;
+                }
+            }
+            return -1;
+        }
+
+        private int head(int h) {
+            return lists[heap[h]].get(pos[heap[h]]);
+        }
+
+        private void siftDown(int h) {
+            while (true) {
+                int smallest = h;
+                int l = 2 * h + 1;
+                int r = l + 1;
+                if (l < heapSize && head(l) < head(smallest)) smallest = l;
+                if (r < heapSize && head(r) < head(smallest)) smallest = r;
+                if (smallest == h) return;
+                int tmp = heap[h];
+                heap[h] = heap[smallest];
+                heap[smallest] = tmp;
+                h = smallest;
+            }
+        }
+    }
+
+    // Dictionary words within the edit budget of term, in both fields.
+    private List<TermMatch> expand(String term) {
+        List<TermMatch> out = new ArrayList<>();
+        int edits = maxEdits(term);
+        if (edits == 0) {
+            IntList ids = titleWords.postings(term);
+            if (ids != null) out.add(new TermMatch(term, false, ids, 0));
+            ids = authorWords.postings(term);
+            if (ids != null) out.add(new TermMatch(term, true, ids, 0));
+            return out;
+        }
+        LevenshteinAutomaton a = new LevenshteinAutomaton(term, edits);
+        // collect reuses per-dictionary buffers; concurrent readers take turns
+        synchronized (titleWords) {
+            titleWords.collect(a, false, out);
+        }
+        synchronized (authorWords) {
+            authorWords.collect(a, true, out);
+        }
+        return out;
+    }
+
+    private long bookCount(TermMatch m) {
+        if (!m.author) return m.ids.size();
+        long n = 0;
+        for (int i = 0; i < m.ids.size(); i++) n += booksOf(m.ids.get(i)).size();
+        return n;
+    }
+
+    private float weight(TermMatch m, int books) {
+        float idf = (float) Math.log(1 + books / (double) (1 + bookCount(m)));
+        float w = idf * (m.distance == 0 ? 1f : m.distance == 1 ? 0.6f : 0.36f);
+        return m.author ? w * 0.8f : w;
+    }
+
+    // For title matches, cursor[c] is where the previous (smaller) id was
+    // looked up; the search gallops forward from there. Author ids do not
+    // follow book order, so those are plain binary searches.
+    private boolean contains(TermMatch m, int id, int[] cursor, int c) {
+        int[] ids = m.ids.data;
+        int size = m.ids.size();
+        if (m.author) return Arrays.binarySearch(ids, 0, size, store.authorId(id)) >= 0;
+
+        int lo = cursor[c];
+        if (lo >= size) return false;
+        int step = 1;
+        int hi = lo;
+        while (hi < size && ids[hi] < id) {
+            lo = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        int at = Arrays.binarySearch(ids, lo, Math.min(hi + 1, size), id);
+        cursor[c] = at >= 0 ? at : -at - 1;
+        return at >= 0;
+    }
+}
+
+// SEARCH CACHE
+// Bounded cache of title-search results, keyed on the case-folded query.
+// Empty results are cached as well. Entries live in a 4-way set-associative
+// table; when a set is full, a new query only displaces the least popular of
+// the four if it has been asked for more often (TinyLFU admission), so a
+// burst of one-off queries cannot flush the hot titles. Popularity is a
+// count-min sketch of 4-bit counters that is halved periodically, letting
+// old favourites age out.
+//
+// The catalog only grows, so an entry records the catalog size it was
+// computed at; BookManager checks just the books added since then and drops
+// the entry only if one of them matches (see BookManager.cachedMatches).
+class SearchCache {
+    static final class Entry {
+        final String query;
+        final int[] ranked; // matching ids, best match first; null if only first is known
+        final int first;    // lowest matching id (first in catalog order), -1 if none
+        final int upTo;     // catalog size the result is valid for
+
+        Entry(String query, int[] ranked, int first, int upTo) {
+            this.query = query;
+            this.ranked = ranked;
+            this.first = first;
+            this.upTo = upTo;
+        }
+
+        Entry validUpTo(int count) {
+            return new Entry(query, ranked, first, count);
+        }
+    }
+
+    private static final int WAYS = 4;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int setMask;
+
+    // Frequency sketch. Updated without synchronization: a lost increment only
+    // makes the popularity estimate slightly lower, which is harmless here.
+    private final byte[] sketch;
+    private final int sketchMask;
+    private final int resetAfter;
+    private int samples;
+
+    public SearchCache(int capacity) {
+        int sets = 1;
+        while (sets * WAYS < capacity) sets <<= 1;
+        slots = new AtomicReferenceArray<>(sets * WAYS);
+        setMask = sets - 1;
+        sketch = new byte[sets * WAYS * 4];
+        sketchMask = sketch.length - 1;
+        resetAfter = sets * WAYS * 10;
+    }
+
+    public int capacity() { return slots.length(); }
+
+    // Cached result for the query, or null. Counts towards the query's popularity.
+    public Entry get(String query) {
+        int h = query.hashCode();
+        recordAccess(h);
+        int base = (spread(h) & setMask) * WAYS;
+        for (int i = 0; i < WAYS; i++) {
+            Entry e = slots.get(base + i);
+            if (e != null && e.query.equals(query)) return e;
+        }
+        return null;
+    }
+
+    // Stores e, replacing any entry for the same query; may decline if the set
+    // is full of more popular queries.
+    public void put(Entry e) {
+        int h = e.query.hashCode();
+        int base = (spread(h) & setMask) * WAYS;
+        int victim = -1;
+        int victimFreq = Integer.MAX_VALUE;
+        for (int i = 0; i < WAYS; i++) {
+            Entry cur = slots.get(base + i);
+            if (cur == null || cur.query.equals(e.query)) {
+                slots.set(base + i, e);
+                return;
+            }
+            int f = frequency(cur.query.hashCode());
+            if (f < victimFreq) {
+                victim = base + i;
+                victimFreq = f;
+            }
+        }
+        if (frequency(h) > victimFreq) slots.set(victim, e);
+    }
+
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) slots.set(i, null);
+    }
+
+    private void recordAccess(int h) {
+        for (int seed : SEEDS) {
+            int i = spread(h * seed) & sketchMask;
+            if (sketch[i] < 15) sketch[i]++;
+        }
+        if (++samples >= resetAfter) {
+            samples = 0;
+            for (int i = 0; i < sketch.length; i++) sketch[i] >>= 1;
+        }
+    }
+
+    private int frequency(int h) {
+        int min = 15;
+        for (int seed : SEEDS) {
+            min = Math.min(min, sketch[spread(h * seed) & sketchMask]);
+        }
+        return min;
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+class BookManager {
+    // Book state lives in the store; Book objects are views created on demand.
+    // Titles are case-folded once there, at insert, instead of on every search.
+    final CatalogStore store = new CatalogStore();
+    int count = 0;
+
+    // Trigram -> ascending ids of the books whose lowercase title contains it.
+    // With a catalog image, only books added since; the image has the rest.
+    private final Map<String, IntList> trigrams = new HashMap<>();
+    private CatalogImage image; // null unless the catalog was opened from one
+
+    // Title and author words for typo-tolerant search.
+    private final FuzzyIndex fuzzy = new FuzzyIndex(store);
+
+    // Guards catalog growth and the title index: addBook writes, searches read.
+    private final StampedLock catalogLock = new StampedLock();
+
+    // Results of recent title searches; filled and checked under the catalog read lock.
+    final SearchCache searchCache = new SearchCache(1024);
+    private static final int MAX_CACHED_MATCHES = 1024; // larger rankings are not cached
+    private static final int MAX_REVALIDATE = 256;      // beyond this, recompute instead
+
+    CatalogJournal journal; // null when running without persistence
+
+    // When false, circulation methods only return their ResultCode and print
+    // nothing (batch mode, benchmarks).
+    boolean verbose = true;
+
+    LibraryMetrics metrics; // null when not instrumented
+    ChangeFeed feed;        // null when changes are not published
+
+    // Who has what; the other direction is the store's borrower column.
+    final LoanIndex loans = new LoanIndex();
+
+    // Time source for loan timestamps and due dates (epoch millis).
+    LongSupplier clock = System::currentTimeMillis;
+
+    static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    static final int HOLD_DAYS = 3; // how long a reserved copy waits to be picked up
+
+    // Every lent book's due date or hold expiry, at one-minute resolution.
+    final TimingWheel deadlines = new TimingWheel(60 * 1000);
+    private final Set<Integer> overdue = ConcurrentHashMap.newKeySet();
+
+    // Circulation state of a book (availability, borrower, reservation queue) is
+    // guarded by the stripe its id maps to, so different books run in parallel.
+    // A stripe may be held while taking a catalog lock (transferBook), never
+    // the other way round.
+    private static final int LOCK_STRIPES = 256;
+    private final Object[] bookLocks = new Object[LOCK_STRIPES];
+    {
+        for (int i = 0; i < LOCK_STRIPES; i++) bookLocks[i] = new Object();
+    }
+
+    private Object lockFor(Book b) {
+        return bookLocks[b.getId() & (LOCK_STRIPES - 1)];
+    }
+
+    // View of the book with the given id (0 .. count-1), in the order books were
+    // added. Ids stay valid after a transfer; see Book.isWithdrawn.
+    public Book getBook(int id) {
+        if (id < 0 || id >= count) throw new IndexOutOfBoundsException("No book with id " + id);
+        return new Book(store, id);
+    }
+
+    // Lazy stream over the catalog in id order; views are created as it is consumed.
+    // Combine with BookFilters, e.g. streamBooks().filter(BookFilters.available()).
+    public Stream<Book> streamBooks() {
+        return IntStream.range(0, count).filter(id -> !store.isWithdrawn(id)).mapToObj(id -> new Book(store, id));
+    }
+
+    // Up to limit books matching filter, starting at id cursor (0 for the first page).
+    public BookPage listBooks(Predicate<Book> filter, int cursor, int limit) {
+        int end = count;
+        List<Book> page = new ArrayList<>(Math.max(0, Math.min(limit, 1024)));
+        int id = Math.max(cursor, 0);
+        for (; id < end && page.size() < limit; id++) {
+            if (store.isWithdrawn(id)) continue;
+            Book b = new Book(store, id);
+            if (filter.test(b)) page.add(b);
+        }
+        return new BookPage(page, id < end ? id : -1);
+    }
+
+    // Menu option 8.
+    public void displayBooks() {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+        try {
+            writeBookList(out, streamBooks());
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void writeBookList(Writer out, Stream<Book> list) throws IOException {
+        String nl = System.lineSeparator();
+        out.write(nl + "-------------------------------------------------------- BOOK LIST -----------------------------------------------------" + nl);
+        // Header row
+        ListingFormatter f = new ListingFormatter(out);
+        f.cell("Title", 70).cell("Available", 12).cell("Borrower", 12).cell("Reservations", 12).endRow();
+        out.write("------------------------------------------------------------------------------------------------------------------------" + nl);
+
+        Iterator<Book> it = list.iterator();
+        while (it.hasNext()) {
+            Book book = it.next();
+            String borrower = book.getBorrowerId();
+            f.cell(book.getTitle(), 70)
+             .cell(borrower == null, 12)
+             .cell(borrower != null ? borrower : "None", 12)
+             .cell(book.getReservationCount(), 12)
+             .endRow();
+        }
+    }
+
+    // Opens an empty catalog on an image: its books become ids 0 .. rows-1 and
+    // are searchable at once, with nothing read until a search needs it.
+    public void attachImage(CatalogImage image) {
+        if (count != 0) throw new IllegalStateException("A catalog image can only be attached to an empty catalog");
+        store.attach(image);
+        fuzzy.attach(image);
+        this.image = image;
+        count = image.rows;
+    }
+
+    public void addBook(Book b) {
+        long stamp = catalogLock.writeLock();
+        try {
+            insertBook(b);
+        } finally {
+            catalogLock.unlockWrite(stamp);
+        }
+    }
+
+    // Adds many books under one lock acquisition.
+    public void addBooks(List<Book> batch) {
+        if (batch.isEmpty()) return;
+        long stamp = catalogLock.writeLock();
+        try {
+            for (Book b : batch) indexBook(b);
+            if (journal != null) journal.booksAdded(batch);
+            for (Book b : batch) emit(LibraryEvent.Type.BOOK_ADDED, b, null, null, 0, 0);
+        } finally {
+            catalogLock.unlockWrite(stamp);
+        }
+    }
+
+    private void insertBook(Book b) {
+        indexBook(b);
+        if (journal != null) journal.bookAdded(b);
+        emit(LibraryEvent.Type.BOOK_ADDED, b, null, null, 0, 0);
+    }
+
+    private void indexBook(Book b) {
+        int id = store.add(b.getTitle(), b.getAuthor());
+        b.attach(store, id);
+        String lower = b.getTitle().toLowerCase();
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            IntList posting = trigrams.get(lower.substring(i, i + 3));
+            if (posting == null) {
+                posting = new IntList();
+                trigrams.put(lower.substring(i, i + 3), posting);
+            }
+            // a title can contain the same trigram twice; index it once
+            if (posting.size() == 0 || posting.last() != id) posting.add(id);
+        }
+        fuzzy.add(id);
+        count++;
+    }
+
+    // Returns the first book (in catalog order) whose title contains the query.
+    public Book searchBookByTitle(String title) throws BookNotFoundException {
+        Book b = findBookByTitle(title);
+        if (b == null) throw new BookNotFoundException("Book titled '" + title + "' not found.");
+        return b;
+    }
+
+    // Same as searchBookByTitle, but returns null instead of throwing.
+    public Book findBookByTitle(String title) {
+        LibraryMetrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        long stamp = catalogLock.readLock();
+        try {
+            int first = cachedMatches(title.toLowerCase(), 0).first;
+            return first >= 0 ? new Book(store, first) : null;
+        } finally {
+            catalogLock.unlockRead(stamp);
+            if (m != null) m.record(LibraryMetrics.Op.SEARCH, start);
+        }
+    }
+
+    // Returns every book whose title contains the query, best match first:
+    // exact title, then title prefix, then word prefix, then any substring;
+    // ties go to the shorter title, then to catalog order.
+    public List<Book> searchBooksByTitle(String title) {
+        return searchBooksByTitle(title, Integer.MAX_VALUE);
+    }
+
+    // The first limit books of the same ranking; none when limit is 0 or less.
+    public List<Book> searchBooksByTitle(String title, int limit) {
+        if (limit <= 0) return new ArrayList<>();
+        LibraryMetrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        final String search = title.toLowerCase();
+        long stamp = catalogLock.readLock();
+        try {
+            return rankMatches(search, limit);
+        } finally {
+            catalogLock.unlockRead(stamp);
+            if (m != null) m.record(LibraryMetrics.Op.SEARCH, start);
+        }
+    }
+
+    // Typo-tolerant search over titles and authors: up to limit books, best
+    // first. "harry poter" and "rowling goblet" both find the Goblet of Fire.
+    // See FuzzyIndex for the matching and ranking rules.
+    public List<Book> fuzzySearch(String query, int limit) {
+        FuzzyIndex.Hit[] hits = fuzzyHits(query, limit);
+        List<Book> result = new ArrayList<>(hits.length);
+        for (FuzzyIndex.Hit hit : hits) result.add(new Book(store, hit.id));
+        return result;
+    }
+
+    // fuzzySearch with the scores, for merging with other branches' results.
+    FuzzyIndex.Hit[] fuzzyHits(String query, int limit) {
+        LibraryMetrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        long stamp = catalogLock.readLock();
+        try {
+            return fuzzy.search(query, limit);
+        } finally {
+            catalogLock.unlockRead(stamp);
+            if (m != null) m.record(LibraryMetrics.Op.FUZZY_SEARCH, start);
+        }
+    }
+
+    private List<Book> rankMatches(String search, int limit) {
+        int[] ranked = cachedMatches(search, limit).ranked;
+        int n = Math.min(ranked.length, limit);
+        List<Book> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) result.add(new Book(store, ranked[i]));
+        return result;
+    }
+
+    // Matches for the (lowercase) query, from the cache when it is still valid.
+    // A cached result stays valid until a book whose title contains the query
+    // is added, so only the books added since it was computed are checked.
+    // ranked is null on the returned entry when rankLimit is 0, and otherwise
+    // starts with at least the best rankLimit books. Only complete rankings of
+    // up to MAX_CACHED_MATCHES books are cached; larger results are ranked
+    // just as far as asked. Caller holds the catalog read lock.
+    private SearchCache.Entry cachedMatches(String search, int rankLimit) {
+        boolean needRanked = rankLimit > 0;
+        int n = count;
+        SearchCache.Entry e = searchCache.get(search);
+        if (e != null && (e.ranked != null || !needRanked)) {
+            // books are only ever appended, so a first match stays the first match
+            if (e.upTo == n || (!needRanked && e.first >= 0)) return e;
+            if (n - e.upTo <= MAX_REVALIDATE && !anyTitleContains(search, e.upTo, n)) {
+                e = e.validUpTo(n);
+                searchCache.put(e);
+                return e;
+            }
+        }
+
+        IntList ids = matchIds(search);
+        int first = ids.size() > 0 ? ids.get(0) : -1;
+        boolean complete = ids.size() <= MAX_CACHED_MATCHES;
+        int[] ranked = needRanked ? rank(ids, search, complete ? ids.size() : rankLimit) : null;
+        e = new SearchCache.Entry(search, ranked, first, n);
+        boolean keepRanked = ranked == null || complete;
+        searchCache.put(keepRanked ? e : new SearchCache.Entry(search, null, first, n));
+        return e;
+    }
+
+    private boolean anyTitleContains(String search, int from, int to) {
+        for (int id = from; id < to; id++) {
+            if (store.titleContains(id, search)) return true;
+        }
+        return false;
+    }
+
+    // The best limit of ids, in ranking order: match rank, then shorter
+    // titles, then catalog order. Each title is folded once, into a sort key
+    // of rank (2 bits), length (30) and id (31). When that is only a few of
+    // many matches, a bounded heap keeps them instead of sorting everything.
+    private int[] rank(IntList ids, String search, int limit) {
+        long[] keys = new long[ids.size()];
+        for (int i = 0; i < keys.length; i++) {
+            int id = ids.get(i);
+            String lower = store.lowerTitle(id);
+            keys[i] = (long) matchRank(lower, search) << 61 | (long) Math.min(lower.length(), (1 << 30) - 1) << 31 | id;
+        }
+        if (limit < keys.length) {
+            PriorityQueue<Long> best = new PriorityQueue<>(limit + 1, Collections.reverseOrder()); // worst on top
+            for (long key : keys) {
+                best.add(key);
+                if (best.size() > limit) best.poll();
+            }
+            keys = new long[best.size()];
+            int i = 0;
+            for (Long key : best) keys[i++] = key;
+        }
+        Arrays.sort(keys);
+        int[] result = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) result[i] = (int) (keys[i] & Integer.MAX_VALUE);
+        return result;
+    }
+
+    static int matchRank(String lowerTitle, String search) {
+        if (lowerTitle.equals(search)) return 0;
+        if (lowerTitle.startsWith(search)) return 1;
+        int at = lowerTitle.indexOf(search);
+        if (at > 0 && !Character.isLetterOrDigit(lowerTitle.charAt(at - 1))) return 2;
+        return 3;
+    }
+
+    // Ascending ids of all titles containing the (already lowercase) query.
+    private IntList matchIds(String search) {
+        IntList result = new IntList();
+        if (search.length() < 3) {
+            // too short to have a trigram; fall back to a scan of the titles
+            for (int i = 0; i < count; i++) {
+                if (store.titleContains(i, search) && !store.isWithdrawn(i)) result.add(i);
+            }
+            return result;
+        }
+
+        // Every match must appear in each query trigram's posting list, so walk
+        // the shortest one and verify its candidates against the full query.
+        // A trigram's list is the image's part (lower ids, read from the file)
+        // followed by the part added since.
+        IntList shortest = null;
+        int shortestInImage = -1;
+        int shortestSize = Integer.MAX_VALUE;
+        for (int i = 0; i + 3 <= search.length(); i++) {
+            IntList posting = trigrams.get(search.substring(i, i + 3));
+            int inImage = image != null ? image.trigram(CatalogImage.trigramKey(search, i)) : -1;
+            int size = (posting != null ? posting.size() : 0) + (inImage >= 0 ? image.trigramIds.size(inImage) : 0);
+            if (size == 0) return result;
+            if (size < shortestSize) {
+                shortest = posting;
+                shortestInImage = inImage;
+                shortestSize = size;
+            }
+        }
+        if (shortestInImage >= 0) {
+            CatalogImage.Postings ids = image.trigramIds;
+            for (int i = 0, n = ids.size(shortestInImage); i < n; i++) {
+                int id = ids.get(shortestInImage, i);
+                if (store.titleContains(id, search) && !store.isWithdrawn(id)) result.add(id);
+            }
+        }
+        for (int i = 0; shortest != null && i < shortest.size(); i++) {
+            int id = shortest.get(i);
+            if (store.titleContains(id, search) && !store.isWithdrawn(id)) result.add(id);
+        }
+        return result;
+    }
+
+    public ResultCode borrowBook(User u, Book b) {
+        LibraryMetrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        ResultCode result;
+        boolean pickedUp = false;
+        long dueAt = 0; // read under the lock: a later return could change it
+        synchronized (lockFor(b)) {
+            if (b.isWithdrawn()) {
+                result = ResultCode.BOOK_NOT_FOUND;
+            } else if (!b.isAvailable()) {
+                if (b.isOnHold() && u.getUserId().equals(b.getBorrowerId())) {
+                    // the user is collecting the copy that was held for them
+                    pickUp(b, u, clock.getAsLong());
+                    if (journal != null) journal.pickedUp(b);
+                    dueAt = b.getDueAt();
+                    emit(LibraryEvent.Type.PICKED_UP, b, u.getUserId(), u, dueAt, 0);
+                    pickedUp = true;
+                    result = ResultCode.OK;
+                } else {
+                    result = ResultCode.ALREADY_BORROWED;
+                }
+            } else if (u.tryIncrementBorrowed()) {
+                long now = clock.getAsLong();
+                lend(b, u.getUserId(), now, dueDate(u, now), false);
+                if (journal != null) journal.borrowed(b, u.getUserId());
+                dueAt = b.getDueAt();
+                emit(LibraryEvent.Type.BORROWED, b, u.getUserId(), u, dueAt, 0);
+                result = ResultCode.OK;
+            } else {
+                result = ResultCode.LIMIT_REACHED;
+            }
+        }
+        if (m != null) {
+            m.record(LibraryMetrics.Op.BORROW, result, start);
+            if (result != ResultCode.OK) m.rejectedBorrow(u, result);
+        }
+        if (verbose) {
+            if (result == ResultCode.OK) {
+                System.out.println((pickedUp ? "Reserved copy picked up!" : "Borrow successful!") + " Due: " + formatDate(dueAt));
+            }
+            else if (result == ResultCode.BOOK_NOT_FOUND) System.out.println("Book has been transferred to another branch.");
+            else if (result == ResultCode.ALREADY_BORROWED) System.out.println("Book is currently borrowed.");
+            else System.out.println("Borrow limit reached!");
+        }
+        return result;
+    }
+
+    public ResultCode returnBook(Book b, User returningUser, UserDirectory um) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        StringBuilder out = verbose ? new StringBuilder() : null;
+        ResultCode result;
+        synchronized (lockFor(b)) {
+            if (b.isAvailable() || b.isWithdrawn()) {
+                // Check if the book is actually borrowed
+                result = ResultCode.NOT_BORROWED;
+            } else if (!b.getBorrowerId().equals(returningUser.getUserId())) {
+                // Check if the returning user is the one who borrowed it
+                result = ResultCode.NOT_BORROWER;
+            } else {
+                unlend(b);
+                returningUser.decrementBorrowed();
+                if (journal != null) journal.returned(b);
+                emit(LibraryEvent.Type.RETURNED, b, returningUser.getUserId(), returningUser, 0, 0);
+                if (verbose) {
+                    out.append("Book returned successfully by user: ").append(returningUser.getName())
+                       .append(" (").append(returningUser.getUserId()).append(")");
+                }
+
+                handOff(b, um, out);
+                result = ResultCode.OK;
+            }
+        }
+        recorded(LibraryMetrics.Op.RETURN, result, start);
+        if (verbose) {
+            if (result == ResultCode.OK) System.out.println(out);
+            else if (result == ResultCode.NOT_BORROWED) System.out.println("This book is not currently borrowed!");
+            else System.out.println("This user did not borrow this book. Return denied!");
+        }
+        return result;
+    }
+
+    // Publishes a change to the feed, if there is one. Called under the lock that
+    // orders the change, so each book's events are in order.
+    // u is userId's user when at hand, so the event can carry its type.
+    private void emit(LibraryEvent.Type type, Book b, String userId, User u, long dueAt, int position) {
+        ChangeFeed f = feed;
+        if (f != null) f.publish(type, b, userId, u != null ? LibraryMetrics.userType(u) : -1, clock.getAsLong(), dueAt, position);
+    }
+
+    private ResultCode recorded(LibraryMetrics.Op op, ResultCode code, long start) {
+        LibraryMetrics m = metrics;
+        if (m != null) m.record(op, code, start);
+        return code;
+    }
+
+    // Assign to next reserved user if any; the copy is held for them for HOLD_DAYS.
+    // Caller holds b's stripe lock; out is null when not verbose.
+    private void handOff(Book b, UserDirectory um, StringBuilder out) {
+        if (b.getReservationCount() == 0) return;
+        LibraryMetrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        while (b.getReservationCount() > 0) {
+            String nextUserId = b.popReservation();
+            if (journal != null) journal.reservationPopped(b);
+            User nextUser = um.findUserById(nextUserId);
+
+            if (nextUser != null) {
+                if (!nextUser.tryIncrementBorrowed()) {
+                    emit(LibraryEvent.Type.RESERVATION_SKIPPED, b, nextUserId, nextUser, 0, 0);
+                    if (m != null) m.rejectedBorrow(nextUser, ResultCode.LIMIT_REACHED);
+                    if (out != null) out.append("\nNext user ").append(nextUser.getName()).append(" has reached borrow limit. Skipping...");
+                    continue;
+                }
+
+                long now = clock.getAsLong();
+                lend(b, nextUserId, now, now + HOLD_DAYS * DAY_MILLIS, true);
+                if (journal != null) journal.borrowed(b, nextUserId);
+                emit(LibraryEvent.Type.AUTO_ASSIGNED, b, nextUserId, nextUser, b.getDueAt(), 0);
+                if (out != null) {
+                    out.append("\nBook automatically assigned to next user in line: ").append(nextUser.getName())
+                       .append(" (").append(nextUser.getUserId()).append(")")
+                       .append(" - on hold until ").append(formatDate(b.getDueAt()));
+                }
+                break;
+            }
+            // the account no longer exists
+            emit(LibraryEvent.Type.RESERVATION_SKIPPED, b, nextUserId, null, 0, 0);
+        }
+        if (m != null) m.record(LibraryMetrics.Op.HAND_OFF, start);
+    }
+
+    // Fires every due date and hold expiry that has passed: overdue loans are
+    // flagged, and lapsed holds go to the next user in line. Returns how many
+    // deadlines fired. Called between commands by the console and batch loops.
+    public int processDeadlines(UserDirectory um) {
+        long now = clock.getAsLong();
+        List<Deadline> fired = deadlines.advance(now);
+        if (fired.isEmpty()) return 0;
+
+        StringBuilder out = verbose ? new StringBuilder() : null;
+        for (Deadline d : fired) {
+            Book b = new Book(store, d.bookId);
+            synchronized (lockFor(b)) {
+                // skip deadlines whose loan ended or was rescheduled after they fired
+                if (store.deadline(d.bookId) != d || d.dueAt > now) continue;
+                if (!d.hold) {
+                    d.overdue = true;
+                    overdue.add(d.bookId);
+                    emit(LibraryEvent.Type.OVERDUE, b, d.userId, um.findUserById(d.userId), d.dueAt, 0);
+                    if (out != null) out.append("\nOverdue: ").append(b.getTitle()).append(" (").append(d.userId).append(")");
+                    continue;
+                }
+
+                User holder = um.findUserById(d.userId);
+                unlend(b);
+                if (holder != null) holder.decrementBorrowed();
+                if (journal != null) journal.returned(b);
+                emit(LibraryEvent.Type.HOLD_EXPIRED, b, d.userId, holder, 0, 0);
+                if (out != null) out.append("\nHold expired: ").append(b.getTitle()).append(" (").append(d.userId).append(")");
+                handOff(b, um, out);
+            }
+        }
+        if (out != null && out.length() > 0) System.out.println(out.substring(1));
+        return fired.size();
+    }
+
+    public List<Book> getOverdueBooks() {
+        List<Book> result = new ArrayList<>();
+        for (Integer id : overdue) result.add(new Book(store, id));
+        return result;
+    }
+
+    static long dueDate(User u, long from) {
+        return from + u.getLoanPeriodDays() * DAY_MILLIS;
+    }
+
+    static String formatDate(long millis) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(millis));
+    }
+
+    // Lends b, indexes the loan and schedules its deadline (none if dueAt is 0).
+    // Caller holds b's stripe lock (or is replaying the journal).
+    void lend(Book b, String userId, long loanedAt, long dueAt, boolean hold) {
+        b.borrowBook(userId, loanedAt);
+        loans.add(userId, b.getId());
+        if (dueAt > 0) {
+            Deadline d = new Deadline(b.getId(), userId, dueAt, hold);
+            store.setDeadline(b.getId(), d);
+            deadlines.schedule(d, clock.getAsLong());
+        }
+    }
+
+    // Turns a hold into a regular loan starting at the given time. Same locking as lend.
+    void pickUp(Book b, User u, long at) {
+        b.borrowBook(u.getUserId(), at);
+        Deadline d = store.deadline(b.getId());
+        if (d == null) return;
+        deadlines.cancel(d);
+        d.hold = false;
+        d.dueAt = dueDate(u, at);
+        deadlines.schedule(d, clock.getAsLong());
+    }
+
+    // Puts b back on the shelf, drops it from its borrower's loans and cancels
+    // its deadline. Same locking as lend.
+    void unlend(Book b) {
+        String userId = b.getBorrowerId();
+        Deadline d = store.deadline(b.getId());
+        if (d != null) {
+            deadlines.cancel(d);
+            store.setDeadline(b.getId(), null);
+            if (d.overdue) overdue.remove(b.getId());
+        }
+        b.returnBook();
+        if (userId != null) loans.remove(userId, b.getId());
+    }
+
+    // Books the user currently has, in no particular order.
+    public List<Book> getLoans(String userId) {
+        int[] ids = loans.loansOf(userId);
+        List<Book> result = new ArrayList<>(ids.length);
+        for (int id : ids) result.add(new Book(store, id));
+        return result;
+    }
+
+    // Account-closure check.
+    public boolean hasLoans(String userId) {
+        return loans.count(userId) > 0;
+    }
+
+    // The user's loans that started before the cutoff (epoch millis).
+    public List<Book> getLoansOlderThan(String userId, long cutoff) {
+        List<Book> result = new ArrayList<>();
+        for (int id : loans.loansOf(userId)) {
+            long at = store.loanedAt(id);
+            if (at != 0 && at < cutoff) result.add(new Book(store, id));
+        }
+        return result;
+    }
+
+    // Returns every book the user has (reservations are handed on as usual);
+    // returns how many were returned.
+    public int returnAllBooks(User u, UserDirectory um) {
+        int returned = 0;
+        for (int id : loans.loansOf(u.getUserId())) {
+            if (returnBook(new Book(store, id), u, um) == ResultCode.OK) returned++;
+        }
+        return returned;
+    }
+
+    public ResultCode reserveBook(Book b, User u) {
+        String userId = u.getUserId();
+        LibraryMetrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        boolean withdrawn;
+        boolean added = false;
+        int position = 0;
+        synchronized (lockFor(b)) {
+            withdrawn = b.isWithdrawn();
+            if (!withdrawn) {
+                added = b.addReservation(userId);
+                if (added && journal != null) journal.reserved(b, userId);
+                position = b.getReservationPosition(userId);
+                if (added) emit(LibraryEvent.Type.RESERVED, b, userId, u, 0, position);
+            }
+        }
+        ResultCode result = withdrawn ? ResultCode.BOOK_NOT_FOUND : added ? ResultCode.OK : ResultCode.ALREADY_RESERVED;
+        if (m != null) {
+            m.record(LibraryMetrics.Op.RESERVE, result, start);
+            if (added) m.reservationQueued(position);
+        }
+        if (verbose) {
+            if (added) {
+                System.out.println("Reservation added! Position in line: " + position);
+            } else if (result == ResultCode.BOOK_NOT_FOUND) {
+                System.out.println("Book has been transferred to another branch.");
+            } else {
+                System.out.println("You already have a reservation for this book. Position in line: " + position);
+            }
+        }
+        return result;
+    }
+
+    // Moves a book that is on the shelf, with no one in line, to another
+    // catalog (another branch). The copy is added there and this row is
+    // withdrawn while b's stripe lock is held, so no one can borrow or reserve
+    // it in between. On success b becomes a view of the new row, as it does
+    // after addBook. If the process dies halfway, the book can end up in both
+    // journals but never in neither.
+    public ResultCode transferBook(Book b, BookManager to) {
+        ResultCode result;
+        synchronized (lockFor(b)) {
+            if (b.isWithdrawn()) {
+                result = ResultCode.BOOK_NOT_FOUND;
+            } else if (!b.isAvailable() || b.getReservationCount() > 0) {
+                result = ResultCode.IN_CIRCULATION;
+            } else {
+                Book copy = new Book(b.getTitle(), b.getAuthor());
+                to.addBook(copy);
+                withdraw(b);
+                b.attach(to.store, copy.getId());
+                result = ResultCode.OK;
+            }
+        }
+        if (verbose) {
+            if (result == ResultCode.OK) System.out.println("Book transferred.");
+            else if (result == ResultCode.IN_CIRCULATION) System.out.println("Book is lent or reserved and cannot be transferred.");
+            else System.out.println("Book has already been transferred.");
+        }
+        return result;
+    }
+
+    // Takes b out of the catalog; caller holds b's stripe lock.
+    private void withdraw(Book b) {
+        long stamp = catalogLock.writeLock();
+        try {
+            markWithdrawn(b);
+            if (journal != null) journal.withdrawn(b);
+            emit(LibraryEvent.Type.WITHDRAWN, b, null, null, 0, 0);
+        } finally {
+            catalogLock.unlockWrite(stamp);
+        }
+    }
+
+    // Same locking as withdraw (or replaying the journal).
+    void markWithdrawn(Book b) {
+        store.setWithdrawn(b.getId());
+        // a cached result may name the book; withdrawals are rare, so start over
+        searchCache.clear();
+    }
+}
+
+// BRANCHES
+// A library system of several branches. Each branch holds its part of the
+// catalog in its own BookManager, with its own store, indexes, search cache,
+// locks and (optionally) journal, so work at one branch never waits on
+// another. Users are spread over per-branch UserManagers by a hash of their
+// ID and may borrow from any branch. The User object is shared, so the
+// borrow limit counts loans at every branch.
+// Title and typo-tolerant searches run on all branches in parallel and the
+// ranked results are merged. Fuzzy scores use each branch's own word
+// frequencies, so a word that is rare at one branch ranks a little higher
+// there than it would in a single combined catalog.
+// For programs that embed BookTrack: the console, batch mode and server run
+// a single catalog.
+class BranchNetwork implements UserDirectory {
+    private final String[] names;
+    private final BookManager[] branches;
+    private final UserManager[] users;
+    private final ExecutorService searchPool; // null with a single branch
+
+    public BranchNetwork(String... names) {
+        if (names.length == 0) throw new IllegalArgumentException("At least one branch is required.");
+        this.names = names.clone();
+        branches = new BookManager[names.length];
+        users = new UserManager[names.length];
+        for (int i = 0; i < names.length; i++) {
+            branches[i] = new BookManager();
+            users[i] = new UserManager();
+        }
+        // the calling thread searches the first branch itself
+        searchPool = names.length == 1 ? null : Executors.newFixedThreadPool(names.length - 1, r -> {
+            Thread t = new Thread(r, "booktrack-branch-search");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int size() { return branches.length; }
+    public String name(int branch) { return names[branch]; }
+    public BookManager branch(int branch) { return branches[branch]; }
+
+    // Index of the named branch, or -1.
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    // Branch whose catalog the view points at, or -1 if it is not in any.
+    public int branchOf(Book b) {
+        for (int i = 0; i < branches.length; i++) {
+            if (b.store() == branches[i].store) return i;
+        }
+        return -1;
+    }
+
+    public void setVerbose(boolean verbose) {
+        for (BookManager bm : branches) bm.verbose = verbose;
+    }
+
+    // Shares one metrics instance between every branch and user partition.
+    public void setMetrics(LibraryMetrics metrics) {
+        for (BookManager bm : branches) bm.metrics = metrics;
+        for (UserManager um : users) um.metrics = metrics;
+    }
+
+    // Publishes the changes at every branch and user partition to one feed.
+    // Book ids in its events are those of the branch the book is at; a
+    // transfer shows up as BOOK_ADDED at the new branch, then WITHDRAWN.
+    public void setFeed(ChangeFeed feed) {
+        for (BookManager bm : branches) bm.feed = feed;
+        for (UserManager um : users) um.feed = feed;
+    }
+
+    public void addBook(int branch, Book b) {
+        branches[branch].addBook(b);
+    }
+
+    public void addUser(User u) throws InvalidUserInputException {
+        users[home(u.getUserId())].addUser(u);
+    }
+
+    @Override
+    public User findUserById(String id) {
+        return id == null ? null : users[home(id)].findUserById(id);
+    }
+
+    private int home(String userId) {
+        return (userId.hashCode() & 0x7fffffff) % users.length;
+    }
+
+    // ---- circulation, at the branch that holds the book ----
+
+    public ResultCode borrowBook(User u, Book b) {
+        int branch = branchOf(b);
+        return branch < 0 ? ResultCode.BOOK_NOT_FOUND : branches[branch].borrowBook(u, b);
+    }
+
+    public ResultCode returnBook(Book b, User u) {
+        int branch = branchOf(b);
+        return branch < 0 ? ResultCode.BOOK_NOT_FOUND : branches[branch].returnBook(b, u, this);
+    }
+
+    public ResultCode reserveBook(Book b, User u) {
+        int branch = branchOf(b);
+        return branch < 0 ? ResultCode.BOOK_NOT_FOUND : branches[branch].reserveBook(b, u);
+    }
+
+    // See BookManager.transferBook; b then points at the copy at the new branch.
+    public ResultCode transferBook(Book b, int toBranch) {
+        int from = branchOf(b);
+        if (from < 0) return ResultCode.BOOK_NOT_FOUND;
+        if (from == toBranch) return ResultCode.OK;
+        return branches[from].transferBook(b, branches[toBranch]);
+    }
+
+    public int processDeadlines() {
+        int fired = 0;
+        for (BookManager bm : branches) fired += bm.processDeadlines(this);
+        return fired;
+    }
+
+    // The user's loans at every branch.
+    public List<Book> getLoans(String userId) {
+        List<Book> result = new ArrayList<>();
+        for (BookManager bm : branches) result.addAll(bm.getLoans(userId));
+        return result;
+    }
+
+    public List<Book> getOverdueBooks() {
+        List<Book> result = new ArrayList<>();
+        for (BookManager bm : branches) result.addAll(bm.getOverdueBooks());
+        return result;
+    }
+
+    // ---- search, fanned out to every branch ----
+
+    // Up to limit books whose title contains the query, ranked as by
+    // BookManager.searchBooksByTitle; ties go to the lower-numbered branch.
+    public List<Book> searchBooksByTitle(String title, int limit) {
+        final String search = title.toLowerCase();
+        List<List<Book>> perBranch = fanOut(bm -> bm.searchBooksByTitle(title, limit));
+        Comparator<Book> order = Comparator.comparingInt((Book b) -> BookManager.matchRank(b.getTitle().toLowerCase(), search))
+                .thenComparingInt(b -> b.getTitle().length())
+                .thenComparingInt(Book::getId);
+        return merge(perBranch, order, limit);
+    }
+
+    // Up to limit books for a typo-tolerant title/author query, best first;
+    // see BookManager.fuzzySearch.
+    public List<Book> fuzzySearch(String query, int limit) {
+        List<List<FuzzyIndex.Hit>> perBranch = fanOut(bm -> Arrays.asList(bm.fuzzyHits(query, limit)));
+        // remember which branch each hit came from before the lists are interleaved
+        Map<FuzzyIndex.Hit, Book> books = new IdentityHashMap<>();
+        for (int i = 0; i < branches.length; i++) {
+            for (FuzzyIndex.Hit hit : perBranch.get(i)) books.put(hit, branches[i].getBook(hit.id));
+        }
+        List<Book> result = new ArrayList<>();
+        for (FuzzyIndex.Hit hit : merge(perBranch, Comparator.<FuzzyIndex.Hit>naturalOrder(), limit)) result.add(books.get(hit));
+        return result;
+    }
+
+    // Runs query against every branch at once; results are in branch order.
+    private <T> List<T> fanOut(Function<BookManager, T> query) {
+        List<Future<T>> pending = new ArrayList<>(branches.length - 1);
+        for (int i = 1; i < branches.length; i++) {
+            final BookManager bm = branches[i];
+            pending.add(searchPool.submit(() -> query.apply(bm)));
+        }
+        List<T> results = new ArrayList<>(branches.length);
+        results.add(query.apply(branches[0]));
+        for (Future<T> f : pending) {
+            try {
+                results.add(f.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Search interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Search failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    // First limit elements of lists that are each sorted by order; among
+    // equal heads, the list that comes first wins.
+    private static <T> List<T> merge(List<List<T>> lists, Comparator<? super T> order, int limit) {
+        int[] pos = new int[lists.size()];
+        List<T> out = new ArrayList<>(Math.min(limit, 1024));
+        while (out.size() < limit) {
+            int best = -1;
+            for (int i = 0; i < lists.size(); i++) {
+                if (pos[i] == lists.get(i).size()) continue;
+                if (best < 0 || order.compare(lists.get(i).get(pos[i]), lists.get(best).get(pos[best])) < 0) best = i;
+            }
+            if (best < 0) break;
+            out.add(lists.get(best).get(pos[best]++));
+        }
+        return out;
+    }
+
+    public void close() {
+        if (searchPool != null) searchPool.shutdown();
+    }
+}
+
+// METRICS
+// Log-linear histogram of non-negative longs (latencies in ns, queue depths).
+// Values below 16 land in their own bucket; above that each power of two is
+// split into 16 buckets, so a reported value is within 1/16 of the recorded
+// one. Recording is a single atomic increment, with no locks and no
+// allocation; max and sum are derived from the buckets when read.
+class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long value) {
+        counts.incrementAndGet(bucket(value < 0 ? 0 : value));
+    }
+
+    // Adds other's counts to this one, e.g. to report several histograms as one.
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) counts.addAndGet(i, n);
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB + (int) ((value >>> shift) & (SUB - 1));
+    }
+
+    // Largest value that falls in the bucket.
+    static long highestValue(int bucket) {
+        if (bucket < SUB) return bucket;
+        int shift = bucket / SUB - 1;
+        long lowest = (long) (SUB + bucket % SUB) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    // Buckets are read one by one while recording continues, which is
+    // consistent enough for reporting. sum uses each bucket's midpoint and max
+    // the top of the highest non-empty bucket, so both share the 1/16 error.
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        long sum = 0;
+        long max = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = counts.get(i);
+            if (n == 0) continue;
+            copy[i] = n;
+            total += n;
+            long high = highestValue(i);
+            long low = i == 0 ? 0 : highestValue(i - 1) + 1;
+            sum += n * (low + (high - low) / 2);
+            max = high;
+        }
+        return new Snapshot(copy, total, sum, max);
+    }
+
+    static class Snapshot {
+        private final long[] counts;
+        final long count;
+        final long sum;
+        final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        // Value at quantile q (0..1), e.g. 0.99 for p99; 0 when nothing was recorded.
+        public long valueAt(double q) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highestValue(i), max);
+            }
+            return max;
+        }
+
+        public long mean() {
+            return count == 0 ? 0 : sum / count;
+        }
+    }
+}
+
+// Latency per hot-path operation, outcome counts, rejected borrows by user
+// type and the reservation queue depths seen on reserve. BookManager and
+// UserManager record into it when their metrics field is set (main shares one
+// instance between them). Readable three ways: writeText (Prometheus text
+// format; GET /metrics on the service, "metrics <file>" in batch mode), and
+// over JMX as booktrack:type=Metrics once register() has been called.
+class LibraryMetrics implements DynamicMBean {
+    enum Op {
+        SEARCH(false), FUZZY_SEARCH(false), FIND_USER(false),
+        BORROW(true), RETURN(true), RESERVE(true), HAND_OFF(false);
+
+        final String label = name().toLowerCase();
+        final boolean hasOutcome; // records a ResultCode
+
+        Op(boolean hasOutcome) {
+            this.hasOutcome = hasOutcome;
+        }
+    }
+
+    static final String[] USER_TYPES = {"student", "teacher", "guest"};
+    private static final ResultCode[] CODES = ResultCode.values();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Histogram[] latency = new Histogram[Op.values().length];
+    private final AtomicLongArray outcomes = new AtomicLongArray(Op.values().length * CODES.length);
+    private final AtomicLongArray rejectedBorrows = new AtomicLongArray(USER_TYPES.length * CODES.length);
+    private final Histogram queueDepth = new Histogram();
+
+    public LibraryMetrics() {
+        for (int i = 0; i < latency.length; i++) latency[i] = new Histogram();
+    }
+
+    // Records the time since startNanos (a System.nanoTime() reading). The two
+    // clock reads around a call usually cost more than the bookkeeping itself.
+    public void record(Op op, long startNanos) {
+        latency[op.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public void record(Op op, ResultCode code, long startNanos) {
+        recordNanos(op, code, System.nanoTime() - startNanos);
+    }
+
+    public void recordNanos(Op op, ResultCode code, long nanos) {
+        latency[op.ordinal()].record(nanos);
+        outcomes.incrementAndGet(op.ordinal() * CODES.length + code.ordinal());
+    }
+
+    public void rejectedBorrow(User u, ResultCode code) {
+        rejectedBorrows.incrementAndGet(userType(u) * CODES.length + code.ordinal());
+    }
+
+    public void reservationQueued(int depth) {
+        queueDepth.record(depth);
+    }
+
+    static int userType(User u) {
+        if (u instanceof Student) return 0;
+        if (u instanceof Teacher) return 1;
+        return 2;
+    }
+
+    public Histogram.Snapshot latency(Op op) {
+        return latency[op.ordinal()].snapshot();
+    }
+
+    public long outcomes(Op op, ResultCode code) {
+        return outcomes.get(op.ordinal() * CODES.length + code.ordinal());
+    }
+
+    // userType is one of USER_TYPES.
+    public long rejectedBorrows(String userType, ResultCode code) {
+        int type = Arrays.asList(USER_TYPES).indexOf(userType);
+        if (type < 0) throw new IllegalArgumentException("Unknown user type '" + userType + "'");
+        return rejectedBorrows.get(type * CODES.length + code.ordinal());
+    }
+
+    // ---- text exposition ----
+
+    public void writeText(Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("# HELP booktrack_latency_nanoseconds Time spent in each hot-path operation.\n");
+        sb.append("# TYPE booktrack_latency_nanoseconds summary\n");
+        for (Op op : Op.values()) {
+            summary(sb, "booktrack_latency_nanoseconds", "op=\"" + op.label + "\"", latency(op));
+        }
+
+        sb.append("# HELP booktrack_outcomes_total Results of each operation by result code.\n");
+        sb.append("# TYPE booktrack_outcomes_total counter\n");
+        for (Op op : Op.values()) {
+            for (ResultCode code : CODES) {
+                long n = outcomes(op, code);
+                if (n > 0) {
+                    sb.append("booktrack_outcomes_total{op=\"").append(op.label)
+                      .append("\",code=\"").append(code.name()).append("\"} ").append(n).append('\n');
+                }
+            }
+        }
+
+        sb.append("# HELP booktrack_rejected_borrows_total Refused borrows and skipped hand-offs by user type.\n");
+        sb.append("# TYPE booktrack_rejected_borrows_total counter\n");
+        for (int t = 0; t < USER_TYPES.length; t++) {
+            for (ResultCode code : CODES) {
+                long n = rejectedBorrows.get(t * CODES.length + code.ordinal());
+                if (n > 0) {
+                    sb.append("booktrack_rejected_borrows_total{user_type=\"").append(USER_TYPES[t])
+                      .append("\",code=\"").append(code.name()).append("\"} ").append(n).append('\n');
+                }
+            }
+        }
+
+        sb.append("# HELP booktrack_reservation_queue_depth Queue length after each new reservation.\n");
+        sb.append("# TYPE booktrack_reservation_queue_depth summary\n");
+        summary(sb, "booktrack_reservation_queue_depth", null, queueDepth.snapshot());
+        out.write(sb.toString());
+    }
+
+    private static void summary(StringBuilder sb, String name, String labels, Histogram.Snapshot s) {
+        String prefix = labels == null ? "" : labels + ",";
+        String plain = labels == null ? "" : "{" + labels + "}";
+        for (double q : QUANTILES) {
+            sb.append(name).append("{").append(prefix).append("quantile=\"").append(q).append("\"} ")
+              .append(s.valueAt(q)).append('\n');
+        }
+        sb.append(name).append("_count").append(plain).append(' ').append(s.count).append('\n');
+        sb.append(name).append("_sum").append(plain).append(' ').append(s.sum).append('\n');
+        sb.append(name).append("_max").append(plain).append(' ').append(s.max).append('\n');
+    }
+
+    // ---- JMX ----
+
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("booktrack:type=Metrics"));
+    }
+
+    // Every attribute is a long; names like SearchP99Nanos, BorrowLimitReached,
+    // RejectedBorrowsStudentLimitReached, ReservationQueueDepthMax.
+    private Map<String, Long> attributes() {
+        Map<String, Long> attrs = new LinkedHashMap<>();
+        for (Op op : Op.values()) {
+            String base = camel(op.name());
+            Histogram.Snapshot s = latency(op);
+            attrs.put(base + "Count", s.count);
+            attrs.put(base + "MeanNanos", s.mean());
+            attrs.put(base + "P50Nanos", s.valueAt(0.5));
+            attrs.put(base + "P99Nanos", s.valueAt(0.99));
+            attrs.put(base + "P999Nanos", s.valueAt(0.999));
+            attrs.put(base + "MaxNanos", s.max);
+            if (!op.hasOutcome) continue;
+            for (ResultCode code : CODES) attrs.put(base + camel(code.name()), outcomes(op, code));
+        }
+        for (int t = 0; t < USER_TYPES.length; t++) {
+            for (ResultCode code : new ResultCode[] {ResultCode.ALREADY_BORROWED, ResultCode.LIMIT_REACHED}) {
+                attrs.put("RejectedBorrows" + camel(USER_TYPES[t]) + camel(code.name()),
+                        rejectedBorrows.get(t * CODES.length + code.ordinal()));
+            }
+        }
+        Histogram.Snapshot depth = queueDepth.snapshot();
+        attrs.put("ReservationQueueDepthCount", depth.count);
+        attrs.put("ReservationQueueDepthP50", depth.valueAt(0.5));
+        attrs.put("ReservationQueueDepthP99", depth.valueAt(0.99));
+        attrs.put("ReservationQueueDepthMax", depth.max);
+        return attrs;
+    }
+
+    // FIND_USER -> FindUser, limit_reached -> LimitReached
+    private static String camel(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean upper = true;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '_') {
+                upper = true;
+            } else {
+                sb.append(upper ? Character.toUpperCase(c) : Character.toLowerCase(c));
+                upper = false;
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        Long value = attributes().get(name);
+        if (value == null) throw new AttributeNotFoundException(name);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Long> attrs = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            Long value = attrs.get(name);
+            if (value != null) list.add(new Attribute(name, value));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        for (String name : attributes().keySet()) {
+            infos.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "BookTrack runtime metrics",
+                infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
+
+// CHANGE FEED
+// One state change, as delivered to ChangeFeed subscribers. Events are
+// preallocated ring slots that are reused once every subscriber has passed
+// them, so a handler must copy whatever it keeps beyond onEvent.
+class LibraryEvent {
+    enum Type {
+        BOOK_ADDED,          // title, author
+        USER_ADDED,          // userId; published just after the user can be found, so it may
+                             // trail that user's first circulation events by a few places
+        BORROWED,            // book, userId, dueAt
+        PICKED_UP,           // book, userId, dueAt: a held copy (see AUTO_ASSIGNED) became a loan
+        RETURNED,            // book, userId of the borrower
+        RESERVED,            // book, userId, position in line
+        AUTO_ASSIGNED,       // book, userId it is held for, dueAt = end of the hold
+        RESERVATION_SKIPPED, // book, userId passed over (at their limit or unknown)
+        HOLD_EXPIRED,        // book, userId who did not pick it up
+        OVERDUE,             // book, userId, dueAt
+        WITHDRAWN            // book: transferred away (the receiving catalog publishes BOOK_ADDED)
+    }
+
+    long sequence;
+    Type type;
+    long time;        // epoch millis
+    int bookId = -1;  // -1 for USER_ADDED
+    String title;
+    String author;
+    String userId;
+    int userType = -1; // LibraryMetrics.USER_TYPES index of userId's user; -1 if unknown or none
+    int borrowLimit;   // USER_ADDED: the user's borrow limit
+    long dueAt;
+    int position;
+
+    void copyFrom(LibraryEvent e) {
+        sequence = e.sequence;
+        type = e.type;
+        time = e.time;
+        bookId = e.bookId;
+        title = e.title;
+        author = e.author;
+        userId = e.userId;
+        userType = e.userType;
+        borrowLimit = e.borrowLimit;
+        dueAt = e.dueAt;
+        position = e.position;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " " + type + (bookId >= 0 ? " book " + bookId + " '" + title + "'" : "") + (userId != null ? " user " + userId : "");
+    }
+}
+
+// Typed stream of catalog and circulation changes for consumers that run off
+// the hot path (notifications, analytics, reporting), in the style of the LMAX
+// Disruptor: a preallocated ring of event slots, claimed by CAS on a shared
+// cursor so any number of threads can publish without locks or allocation.
+// Each slot records the lap in which it was last published, so consumers know
+// how far the ring is filled even when producers finish out of order.
+//
+// Every subscriber runs on its own thread and receives events in sequence
+// order, in batches: each event comes with endOfBatch set on the last one
+// currently available, so a handler can flush once per batch. Subscribers gate
+// the producers: a publisher that would overwrite an event some subscriber has
+// not handled yet waits for it (backpressure), so a stalled subscriber
+// eventually stalls circulation. With no subscribers the ring simply wraps.
+// The last capacity() events stay in the ring and can be replayed by
+// subscribing (or reading) from an older sequence number.
+//
+// BookManager publishes while holding the lock that orders the change (the
+// book's stripe lock, or the catalog lock for additions), so events for one
+// book appear in the order they happened. Since a full ring makes that
+// publisher wait for the subscribers, a handler must never call into
+// BookManager or UserManager or take any lock a publisher may hold: an event
+// carries everything a handler needs. UserManager publishes after releasing
+// its lock, so a roster larger than the ring cannot wedge a lookup.
+//
+// An idle subscriber spins briefly, then parks until a publisher unparks it.
+// Publishers look for parked subscribers only while the count of them is nonzero.
+class ChangeFeed {
+    interface Handler {
+        void onEvent(LibraryEvent e, boolean endOfBatch) throws Exception;
+    }
+
+    private final LibraryEvent[] ring;
+    private final int mask;
+    private final int shift;
+    private final AtomicIntegerArray published; // lap of the event now in each slot
+
+    private final AtomicLong cursor = new AtomicLong(-1); // highest claimed sequence
+    private final AtomicLong gatingCache = new AtomicLong(-1);
+    private final AtomicInteger parked = new AtomicInteger(); // idle subscribers waiting for an unpark
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    public ChangeFeed(int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        ring = new LibraryEvent[capacity];
+        for (int i = 0; i < capacity; i++) ring[i] = new LibraryEvent();
+        mask = capacity - 1;
+        shift = Integer.numberOfTrailingZeros(capacity);
+        published = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) published.set(i, -1);
+    }
+
+    public int capacity() { return ring.length; }
+
+    // Sequence of the last claimed event; -1 before the first.
+    public long cursor() { return cursor.get(); }
+
+    // Oldest sequence still in the ring.
+    public long oldest() { return Math.max(0, cursor.get() - ring.length + 1); }
+
+    // ---- publishing ----
+
+    // userType as in LibraryEvent: the publisher knows it, a subscriber must not look it up.
+    public void publish(LibraryEvent.Type type, Book b, String userId, int userType, long time, long dueAt, int position) {
+        long seq = claim();
+        LibraryEvent e = ring[(int) seq & mask];
+        e.sequence = seq;
+        e.type = type;
+        e.time = time;
+        e.bookId = b.getId();
+        e.title = b.getTitle();
+        e.author = b.getAuthor();
+        e.userId = userId;
+        e.userType = userType;
+        e.borrowLimit = 0;
+        e.dueAt = dueAt;
+        e.position = position;
+        publish(seq);
+    }
+
+    public void userAdded(User u, long time) {
+        long seq = claim();
+        LibraryEvent e = ring[(int) seq & mask];
+        e.sequence = seq;
+        e.type = LibraryEvent.Type.USER_ADDED;
+        e.time = time;
+        e.bookId = -1;
+        e.title = null;
+        e.author = null;
+        e.userId = u.getUserId();
+        e.userType = LibraryMetrics.userType(u);
+        e.borrowLimit = u.getMaxBorrowLimit();
+        e.dueAt = 0;
+        e.position = 0;
+        publish(seq);
+    }
+
+    // Next sequence, once no subscriber still needs the slot it maps to.
+    private long claim() {
+        while (true) {
+            long current = cursor.get();
+            long next = current + 1;
+            long wrapPoint = next - ring.length;
+            long gate = gatingCache.get();
+            if (wrapPoint > gate || gate > current) {
+                long min = minimumSequence(current);
+                if (wrapPoint > min) {
+                    LockSupport.parkNanos(1); // a subscriber is a full ring behind
+                    continue;
+                }
+                gatingCache.set(min);
+            } else if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    private void publish(long seq) {
+        // A volatile write, not lazySet: together with the subscriber's increment
+        // of parked, either it sees this event or this sees it parked.
+        published.set((int) seq & mask, (int) (seq >>> shift));
+        if (parked.get() > 0) {
+            for (Subscription s : subscriptions) {
+                if (s.parked) LockSupport.unpark(s.thread);
+            }
+        }
+    }
+
+    private long minimumSequence(long dflt) {
+        long min = dflt;
+        for (Subscription s : subscriptions) min = Math.min(min, s.sequence);
+        return min;
+    }
+
+    private boolean isPublished(long seq) {
+        return published.get((int) seq & mask) == (int) (seq >>> shift);
+    }
+
+    // Highest sequence in [from, to] up to which every event is published, or from - 1.
+    private long highestPublished(long from, long to) {
+        for (long seq = from; seq <= to; seq++) {
+            if (!isPublished(seq)) return seq - 1;
+        }
+        return to;
+    }
+
+    // ---- consuming ----
+
+    // Subscribes from the next event.
+    public Subscription subscribe(String name, Handler handler) {
+        return subscribe(name, cursor.get() + 1, handler);
+    }
+
+    // Replays from the given sequence, which must still be in the ring, then
+    // follows new events.
+    public synchronized Subscription subscribe(String name, long from, Handler handler) {
+        if (from > cursor.get() + 1) throw new IllegalArgumentException("Sequence " + from + " is not in the feed yet.");
+        Subscription s = new Subscription(name, cursor.get(), handler);
+        Subscription[] grown = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        grown[subscriptions.length] = s;
+        subscriptions = grown;
+        // Publishers that had not seen s yet may have moved on; they cannot
+        // have lapped the cursor as it is now.
+        s.sequence = cursor.get();
+        try {
+            // older events are handed over as copies, since their slots are not held for s
+            int missed = (int) Math.min(s.sequence - from + 1, Integer.MAX_VALUE);
+            if (missed > 0) {
+                List<LibraryEvent> backlog;
+                // the newest events may still be being written
+                while ((backlog = read(from, missed)).size() < missed) Thread.yield();
+                s.backlog = backlog;
+            }
+        } catch (IllegalArgumentException e) {
+            remove(s);
+            throw e;
+        }
+        s.thread.start();
+        return s;
+    }
+
+    private synchronized void remove(Subscription s) {
+        List<Subscription> kept = new ArrayList<>(Arrays.asList(subscriptions));
+        kept.remove(s);
+        subscriptions = kept.toArray(new Subscription[0]);
+    }
+
+    // Copies of up to max events starting at from, for pull-based consumers
+    // (e.g. GET /events). Fails if from has already been overwritten.
+    public List<LibraryEvent> read(long from, int max) {
+        long upTo = from < 0 ? from - 1 : highestPublished(from, Math.min(cursor.get(), from + max - 1));
+        List<LibraryEvent> out = new ArrayList<>((int) Math.max(0, upTo - from + 1));
+        for (long seq = from; seq <= upTo; seq++) {
+            LibraryEvent copy = new LibraryEvent();
+            copy.copyFrom(ring[(int) seq & mask]);
+            out.add(copy);
+        }
+        // a publisher may have lapped the reader while it copied
+        if (from < 0 || from <= cursor.get() - ring.length) {
+            throw new IllegalArgumentException("Sequence " + from + " is no longer in the feed.");
+        }
+        return out;
+    }
+
+    // One subscriber: a thread that hands every published event to its handler.
+    class Subscription {
+        final String name;
+        private final Handler handler;
+        private final Thread thread;
+        volatile long sequence; // last handled
+        private volatile boolean running = true;
+        private volatile boolean parked = false;
+        private volatile List<LibraryEvent> backlog; // replayed before the live events
+
+        Subscription(String name, long sequence, Handler handler) {
+            this.name = name;
+            this.sequence = sequence;
+            this.handler = handler;
+            thread = new Thread(this::run, "booktrack-feed-" + name);
+            thread.setDaemon(true);
+        }
+
+        // Last sequence handled, e.g. to resume from after a restart of the consumer.
+        public long sequence() { return sequence; }
+
+        private void run() {
+            if (backlog != null) {
+                for (int i = 0; i < backlog.size() && running; i++) deliver(backlog.get(i), i == backlog.size() - 1);
+                backlog = null;
+            }
+            int idle = 0;
+            while (running) {
+                long next = sequence + 1;
+                long available = highestPublished(next, cursor.get());
+                if (available < next) {
+                    // back off: spin, then yield, then park until a publisher unparks us
+                    if (++idle > 200) park(next);
+                    else if (idle > 100) Thread.yield();
+                    continue;
+                }
+                idle = 0;
+                for (long seq = next; seq <= available; seq++) deliver(ring[(int) seq & mask], seq == available);
+                sequence = available;
+            }
+        }
+
+        private void park(long next) {
+            parked = true;
+            ChangeFeed.this.parked.incrementAndGet();
+            try {
+                // the check after announcing ourselves closes the race with publish
+                if (running && !isPublished(next)) LockSupport.parkNanos(this, 1_000_000_000L);
+            } finally {
+                parked = false;
+                ChangeFeed.this.parked.decrementAndGet();
+            }
+        }
+
+        // A failing handler is reported and skips the event; it must not stall the feed.
+        private void deliver(LibraryEvent e, boolean endOfBatch) {
+            try {
+                handler.onEvent(e, endOfBatch);
+            } catch (Exception ex) {
+                System.err.println("Feed subscriber " + name + " failed on event " + e.sequence + ": " + ex);
+            }
+        }
+
+        // Waits until every event published so far has been handled.
+        public void awaitCaughtUp() throws InterruptedException {
+            long target = cursor.get();
+            while ((sequence < target || backlog != null) && running) {
+                // published may lag claimed briefly; it always catches up
+                Thread.sleep(1);
+            }
+        }
+
+        public void close() {
+            running = false;
+            remove(this);
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+// ANALYTICS
+// Count-min sketch: approximate counts for an unbounded set of keys in fixed
+// space. Each key adds to one counter in each of DEPTH rows and its estimate
+// is the smallest of them, which never undercounts and, with high
+// probability, overcounts by at most 2n/width after n additions. Counters are
+// atomic, so any thread may add, and sketches of the same width merge by
+// adding counter for counter.
+class CountMinSketch {
+    private static final int DEPTH = 4;
+
+    private final int width;
+    private final AtomicLongArray counts;
+
+    public CountMinSketch(int width) {
+        if (Integer.bitCount(width) != 1) throw new IllegalArgumentException("Width must be a power of two: " + width);
+        this.width = width;
+        counts = new AtomicLongArray(DEPTH * width);
+    }
+
+    // Adds n to the key's counters and returns its new estimate.
+    public long add(String key, long n) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 + 0x7f4a7c15) | 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            // row i uses h1 + i*h2 (Kirsch-Mitzenmacher), so one string hash serves all rows
+            min = Math.min(min, counts.addAndGet(row * width + ((h1 + row * h2) & (width - 1)), n));
+        }
+        return min;
+    }
+
+    public long estimate(String key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 + 0x7f4a7c15) | 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counts.get(row * width + ((h1 + row * h2) & (width - 1))));
+        }
+        return min;
+    }
+
+    public void merge(CountMinSketch other) {
+        if (other.width != width) throw new IllegalArgumentException("Sketch widths differ: " + width + " and " + other.width);
+        for (int i = 0; i < counts.length(); i++) {
+            long n = other.counts.get(i);
+            if (n != 0) counts.addAndGet(i, n);
+        }
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+// The k keys with the highest count-min estimates. Candidates sit in a
+// min-heap, so an update is O(log k) and a new key only has to beat the
+// smallest. One thread adds; after a batch it calls publish, and readers on
+// any thread get that ranking from top(n) in O(n) without touching the heap.
+class TopK {
+    static final class Entry {
+        final String key;
+        final long count;
+
+        Entry(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        @Override
+        public String toString() {
+            return key + " (" + count + ")";
+        }
+    }
+
+    private static final Entry[] NONE = new Entry[0];
+
+    private final int k;
+    private final CountMinSketch sketch;
+    private final String[] keys;
+    private final long[] estimates;
+    private final HashMap<String, Integer> slots = new HashMap<>();
+    private int size;
+    private boolean changed;
+    private volatile Entry[] ranked = NONE;
+
+    public TopK(int k, int sketchWidth) {
+        this.k = k;
+        sketch = new CountMinSketch(sketchWidth);
+        keys = new String[k];
+        estimates = new long[k];
+    }
+
+    public void add(String key) {
+        offer(key, sketch.add(key, 1));
+    }
+
+    // Estimates only grow, so a candidate can only move down the heap.
+    private void offer(String key, long estimate) {
+        Integer at = slots.get(key);
+        if (at != null) {
+            estimates[at] = estimate;
+            siftDown(at);
+        } else if (size < k) {
+            keys[size] = key;
+            estimates[size] = estimate;
+            slots.put(key, size);
+            siftUp(size++);
+        } else if (estimate > estimates[0]) {
+            slots.remove(keys[0]);
+            keys[0] = key;
+            estimates[0] = estimate;
+            slots.put(key, 0);
+            siftDown(0);
+        } else {
+            return;
+        }
+        changed = true;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (estimates[parent] <= estimates[i]) return;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int least = i;
+            int left = 2 * i + 1;
+            if (left < size && estimates[left] < estimates[least]) least = left;
+            if (left + 1 < size && estimates[left + 1] < estimates[least]) least = left + 1;
+            if (least == i) return;
+            swap(i, least);
+            i = least;
+        }
+    }
+
+    private void swap(int a, int b) {
+        String key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        long estimate = estimates[a];
+        estimates[a] = estimates[b];
+        estimates[b] = estimate;
+        slots.put(keys[a], a);
+        slots.put(keys[b], b);
+    }
+
+    // Makes the current ranking visible to top(); O(k log k), and only when
+    // something changed since the last call.
+    public void publish() {
+        if (!changed) return;
+        Entry[] out = new Entry[size];
+        for (int i = 0; i < size; i++) out[i] = new Entry(keys[i], estimates[i]);
+        Arrays.sort(out, (a, b) -> a.count != b.count ? Long.compare(b.count, a.count) : a.key.compareTo(b.key));
+        ranked = out;
+        changed = false;
+    }
+
+    // The n highest, most first, as of the last publish.
+    public List<Entry> top(int n) {
+        Entry[] r = ranked;
+        return Collections.unmodifiableList(Arrays.asList(r).subList(0, Math.min(Math.max(n, 0), r.length)));
+    }
+
+    // Adds other's counts to this one and re-ranks the candidates of both by
+    // their merged estimates. Reads only other's sketch and published ranking,
+    // so other may keep being updated by its own thread meanwhile; this one
+    // must not be. Call publish afterwards.
+    public void merge(TopK other) {
+        sketch.merge(other.sketch);
+        Set<String> candidates = new HashSet<>(slots.keySet());
+        for (Entry e : other.ranked) candidates.add(e.key);
+        slots.clear();
+        size = 0;
+        for (String key : candidates) offer(key, sketch.estimate(key));
+        changed = true;
+    }
+}
+
+// Continuously maintained answers to "most borrowed titles and authors this
+// month", "utilization by user type" and "how long do reservations wait",
+// kept up to date from the ChangeFeed instead of rescanning the catalog.
+//
+// Per calendar month (by event time, default time zone; the last MONTHS are
+// kept): top titles and authors (count-min sketch plus top-k heap, so counts
+// may be slightly high), checkouts by user type, and a histogram of
+// reservation waits in millis, from RESERVED to the AUTO_ASSIGNED that hands
+// the user the copy. Users, borrow capacity (sum of the limits) and loans
+// (copies lent or held) by user type are running totals.
+//
+// One feed subscriber thread does all updating, from the events alone: it
+// never calls back into the managers (see ChangeFeed). Queries may come from any
+// thread: they read atomics and the rankings published at the end of each
+// batch, costing O(k) for one month. Windows merge (sketches and histograms
+// add up), which is how a query over several months is answered.
+class LibraryAnalytics implements ChangeFeed.Handler {
+    static final int TOP_K = 100;
+    static final int MONTHS = 12;
+    private static final int SKETCH_WIDTH = 1 << 13;
+    private static final int TYPES = LibraryMetrics.USER_TYPES.length;
+
+    private static final class Window {
+        final long month; // year * 12 + month - 1
+        final long start;
+        final long end;
+        final TopK titles = new TopK(TOP_K, SKETCH_WIDTH);
+        final TopK authors = new TopK(TOP_K, SKETCH_WIDTH);
+        final AtomicLongArray borrows = new AtomicLongArray(TYPES);
+        final Histogram reservationWait = new Histogram();
+
+        Window(long month, long start, long end) {
+            this.month = month;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final ZoneId zone = ZoneId.systemDefault();
+    LongSupplier clock = System::currentTimeMillis; // picks "this month" for queries
+
+    private final AtomicLongArray usersByType = new AtomicLongArray(TYPES);
+    private final AtomicLongArray capacityByType = new AtomicLongArray(TYPES);
+    private final AtomicLongArray loansByType = new AtomicLongArray(TYPES);
+    private final AtomicReferenceArray<Window> windows = new AtomicReferenceArray<>(MONTHS); // by month % MONTHS
+
+    // Subscriber thread only: the window of the last event, and when each
+    // pending reservation ("bookId/userId") was made.
+    private Window current;
+    private final HashMap<String, Long> waiting = new HashMap<>();
+
+    private ChangeFeed.Subscription subscription;
+
+    // Counts the users and loans that exist now, then follows the feed for
+    // every later change. Call before circulation starts, so no change is
+    // both counted here and delivered. Reservations already queued are not
+    // timed.
+    public void start(UserManager um, ChangeFeed feed) {
+        um.streamUsers().forEach(u -> {
+            int type = LibraryMetrics.userType(u);
+            addUser(type, u.getMaxBorrowLimit());
+            loansByType.addAndGet(type, u.getCurrentlyBorrowed());
+        });
+        subscription = feed.subscribe("analytics", this);
+    }
+
+    // Waits until every change published so far is reflected in the queries.
+    public void catchUp() throws InterruptedException {
+        if (subscription != null) subscription.awaitCaughtUp();
+    }
+
+    public void close() {
+        if (subscription != null) subscription.close();
+    }
+
+    // ---- updating (subscriber thread) ----
+
+    @Override
+    public void onEvent(LibraryEvent e, boolean endOfBatch) {
+        switch (e.type) {
+            case USER_ADDED:
+                if (e.userType >= 0) addUser(e.userType, e.borrowLimit);
+                break;
+            case BORROWED:
+                count(loansByType, e, 1);
+                checkedOut(e);
+                break;
+            case PICKED_UP:
+                // the loan was counted when the copy was assigned
+                checkedOut(e);
+                break;
+            case AUTO_ASSIGNED: {
+                count(loansByType, e, 1);
+                Long reservedAt = waiting.remove(e.bookId + "/" + e.userId);
+                Window w = window(e.time);
+                if (reservedAt != null && w != null) w.reservationWait.record(e.time - reservedAt);
+                break;
+            }
+            case RETURNED:
+            case HOLD_EXPIRED:
+                count(loansByType, e, -1);
+                break;
+            case RESERVED:
+                waiting.put(e.bookId + "/" + e.userId, e.time);
+                break;
+            case RESERVATION_SKIPPED:
+                waiting.remove(e.bookId + "/" + e.userId);
+                break;
+            default:
+                break;
+        }
+        if (endOfBatch && current != null) {
+            current.titles.publish();
+            current.authors.publish();
+        }
+    }
+
+    private void addUser(int type, int borrowLimit) {
+        usersByType.incrementAndGet(type);
+        capacityByType.addAndGet(type, borrowLimit);
+    }
+
+    private void checkedOut(LibraryEvent e) {
+        Window w = window(e.time);
+        if (w == null) return;
+        count(w.borrows, e, 1);
+        w.titles.add(e.title);
+        w.authors.add(e.author);
+        if (w != current) {
+            // a late event for last month: onEvent only publishes the current window
+            w.titles.publish();
+            w.authors.publish();
+        }
+    }
+
+    // Adds delta to the counter for the event's user type. Events whose user
+    // the publisher did not know (userType -1) are left out, not guessed at.
+    private static void count(AtomicLongArray byType, LibraryEvent e, int delta) {
+        if (e.userType >= 0) byType.addAndGet(e.userType, delta);
+    }
+
+    // The window holding time, created on its first event; null if it is
+    // older than every window kept.
+    private Window window(long time) {
+        Window w = current;
+        if (w != null && time >= w.start && time < w.end) return w;
+        YearMonth ym = YearMonth.from(Instant.ofEpochMilli(time).atZone(zone));
+        long month = monthNumber(ym);
+        int slot = (int) (month % MONTHS);
+        w = windows.get(slot);
+        if (w == null || w.month < month) {
+            if (current != null) {
+                current.titles.publish();
+                current.authors.publish();
+            }
+            w = new Window(month, epochMillis(ym), epochMillis(ym.plusMonths(1)));
+            windows.set(slot, w);
+        } else if (w.month > month) {
+            return null;
+        }
+        if (current == null || w.month >= current.month) current = w;
+        return w;
+    }
+
+    private long epochMillis(YearMonth ym) {
+        return ym.atDay(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    private static long monthNumber(YearMonth ym) {
+        return ym.getYear() * 12L + ym.getMonthValue() - 1;
+    }
+
+    // ---- queries (any thread) ----
+
+    // The windows for the last `months` calendar months, this one included, that have any events.
+    private List<Window> lastMonths(int months) {
+        long now = monthNumber(YearMonth.from(Instant.ofEpochMilli(clock.getAsLong()).atZone(zone)));
+        List<Window> out = new ArrayList<>();
+        for (int i = 0; i < Math.min(months, MONTHS); i++) {
+            Window w = windows.get((int) ((now - i) % MONTHS));
+            if (w != null && w.month == now - i) out.add(w);
+        }
+        return out;
+    }
+
+    // The n most borrowed titles over the last `months` months (1 = this month).
+    public List<TopK.Entry> topTitles(int n, int months) {
+        return top(n, months, true);
+    }
+
+    public List<TopK.Entry> topAuthors(int n, int months) {
+        return top(n, months, false);
+    }
+
+    private List<TopK.Entry> top(int n, int months, boolean titles) {
+        List<Window> ws = lastMonths(months);
+        if (ws.isEmpty()) return Collections.emptyList();
+        if (ws.size() == 1) return titles ? ws.get(0).titles.top(n) : ws.get(0).authors.top(n);
+        TopK merged = new TopK(TOP_K, SKETCH_WIDTH);
+        for (Window w : ws) merged.merge(titles ? w.titles : w.authors);
+        merged.publish();
+        return merged.top(n);
+    }
+
+    // Checkouts (borrows and held copies picked up) by the user type, over the last `months` months.
+    public long borrows(int type, int months) {
+        long n = 0;
+        for (Window w : lastMonths(months)) n += w.borrows.get(type);
+        return n;
+    }
+
+    public long users(int type) { return usersByType.get(type); }
+
+    public long loans(int type) { return loansByType.get(type); }
+
+    // Share of the type's borrow capacity in use (loans and holds / sum of limits), 0..1.
+    public double utilization(int type) {
+        long capacity = capacityByType.get(type);
+        return capacity == 0 ? 0 : (double) loansByType.get(type) / capacity;
+    }
+
+    // Time from reserving to being assigned the copy, in millis, over the last `months` months.
+    public Histogram.Snapshot reservationWait(int months) {
+        Histogram merged = new Histogram();
+        for (Window w : lastMonths(months)) merged.add(w.reservationWait);
+        return merged.snapshot();
+    }
+}
+
+// LISTING
+// Row formatter for the list views. Pads cells into one reused buffer and
+// writes whole rows, matching printf("%-Ns ...") output without parsing a
+// format string per row.
+class ListingFormatter {
+    private final Writer out;
+    private final StringBuilder row = new StringBuilder(160);
+    private final String newline = System.lineSeparator();
+
+    public ListingFormatter(Writer out) {
+        this.out = out;
+    }
+
+    // Left-aligned, padded to width, never truncated (like %-Ns).
+    public ListingFormatter cell(String value, int width) {
+        if (row.length() > 0) row.append(' ');
+        int start = row.length();
+        row.append(value);
+        while (row.length() - start < width) row.append(' ');
+        return this;
+    }
+
+    public ListingFormatter cell(long value, int width) {
+        if (row.length() > 0) row.append(' ');
+        int start = row.length();
+        row.append(value);
+        while (row.length() - start < width) row.append(' ');
+        return this;
+    }
+
+    public ListingFormatter cell(boolean value, int width) {
+        return cell(value ? "true" : "false", width);
+    }
+
+    public void endRow() throws IOException {
+        row.append(newline);
+        out.append(row);
+        row.setLength(0);
+    }
+}
+
+// Filters and orderings for BookManager.streamBooks / listBooks.
+class BookFilters {
+    public static Predicate<Book> all() {
+        return b -> true;
+    }
+
+    public static Predicate<Book> available() {
+        return Book::isAvailable;
+    }
+
+    public static Predicate<Book> borrowedBy(String userId) {
+        return b -> userId.equals(b.getBorrowerId());
+    }
+
+    public static Predicate<Book> hasReservations() {
+        return b -> b.getReservationCount() > 0;
+    }
+
+    public static final Comparator<Book> BY_TITLE = Comparator.comparing(Book::getTitle, String.CASE_INSENSITIVE_ORDER);
+    public static final Comparator<Book> BY_AUTHOR = Comparator.comparing(Book::getAuthor, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(BY_TITLE);
+}
+
+// One page of a cursor-based listing. Pass nextCursor back to listBooks for
+// the following page; it is -1 once the catalog has been fully scanned.
+class BookPage {
+    final List<Book> books;
+    final int nextCursor;
+
+    BookPage(List<Book> books, int nextCursor) {
+        this.books = books;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Book> getBooks() { return books; }
+    public int getNextCursor() { return nextCursor; }
+    public boolean hasMore() { return nextCursor >= 0; }
+}
+
+// PERSISTENCE
+// Write-ahead log of every catalog/user/circulation change, plus a compact
+// snapshot. On start the snapshot is loaded and the log tail replayed on top.
+// After buildImage the books themselves are in a CatalogImage, mapped at
+// start, and the snapshot keeps only the state of those that have any.
+//
+// Log layout:      [int LOG_MAGIC][records...]
+// Log record:      [int length][byte type][payload][int crc32(type + payload)]
+// Strings in both are [int length][UTF-8 bytes].
+// Snapshot layout: [int magic][long image stamp][int image rows][int users][users...]
+//                  [int image books with state][(int id, state)...]
+//                  [int books after the image][(title, author, state)...][int crc32]
+class CatalogJournal {
+    static final byte ADD_BOOK = 1;
+    static final byte ADD_USER = 2;
+    static final byte BORROW = 3;
+    static final byte RETURN = 4;
+    static final byte RESERVE = 5;
+    static final byte POP_RESERVATION = 6;
+    static final byte PICKUP = 7;
+    static final byte WITHDRAW = 8;
+
+    private static final int SNAPSHOT_MAGIC = 0x424B5435; // "BKT5"
+    private static final int LOG_MAGIC = 0x424B4C32;      // "BKL2": the log's first int
+    private static final int GROUP_COMMIT = 64;           // records per fsync
+    private static final int COMPACT_AFTER = 100000;      // records before a new snapshot
+
+    private final File dir;
+    private final File logFile;
+    private final File snapshotFile;
+    private final BookManager bm;
+    private final UserManager um;
+
+    // The image holding books [0, imageRows); imageStamp 0 when there is none.
+    private long imageStamp = 0;
+    private int imageRows = 0;
+
+    private FileOutputStream logOut;
+    private DataOutputStream log;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+    private int unsynced = 0;
+    private int records = 0;
+
+    private CatalogJournal(File dir, BookManager bm, UserManager um) {
+        this.dir = dir;
+        this.logFile = new File(dir, "catalog.wal");
+        this.snapshotFile = new File(dir, "catalog.snapshot");
+        this.bm = bm;
+        this.um = um;
+    }
+
+    // Loads dir's snapshot and log into the (empty) managers, then attaches
+    // the journal so every later change is logged.
+    public static CatalogJournal open(File dir, BookManager bm, UserManager um) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create data directory " + dir);
+        }
+        CatalogJournal j = new CatalogJournal(dir, bm, um);
+        if (j.snapshotFile.exists()) j.loadSnapshot();
+        if (j.logFile.exists()) j.replayLog();
+        j.deleteImagesExcept(j.imageStamp); // left over from an interrupted buildImage
+        j.logOut = new FileOutputStream(j.logFile, true);
+        j.log = new DataOutputStream(new BufferedOutputStream(j.logOut, 64 * 1024));
+        if (j.logFile.length() == 0) j.startLog();
+        bm.journal = j;
+        um.journal = j;
+        return j;
+    }
+
+    // ---- logging (called by the managers while they hold the affected lock) ----
+
+    public void bookAdded(Book b) {
+        try {
+            synchronized (this) {
+                begin(ADD_BOOK);
+                writeString(record, b.getTitle());
+                writeString(record, b.getAuthor());
+                commit();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Bulk variant for imports: the whole batch shares a single fsync.
+    public void booksAdded(List<Book> batch) {
+        try {
+            synchronized (this) {
+                for (Book b : batch) {
+                    begin(ADD_BOOK);
+                    writeString(record, b.getTitle());
+                    writeString(record, b.getAuthor());
+                    append();
+                }
+                sync();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void userAdded(User u) {
+        try {
+            synchronized (this) {
+                begin(ADD_USER);
+                record.writeByte(userType(u));
+                writeString(record, u.getName());
+                writeString(record, u.getUserId());
+                commit();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void borrowed(Book b, String userId) {
+        try {
+            synchronized (this) {
+                begin(BORROW);
+                record.writeInt(b.getId());
+                writeString(record, userId);
+                record.writeLong(b.getLoanedAt());
+                record.writeBoolean(b.isOnHold());
+                commit();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void returned(Book b) { bookEvent(RETURN, b, null); }
+
+    public void pickedUp(Book b) {
+        try {
+            synchronized (this) {
+                begin(PICKUP);
+                record.writeInt(b.getId());
+                record.writeLong(b.getLoanedAt());
+                commit();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void reserved(Book b, String userId) { bookEvent(RESERVE, b, userId); }
+    public void reservationPopped(Book b) { bookEvent(POP_RESERVATION, b, null); }
+    public void withdrawn(Book b) { bookEvent(WITHDRAW, b, null); }
+
+    private void bookEvent(byte type, Book b, String userId) {
+        try {
+            synchronized (this) {
+                begin(type);
+                record.writeInt(b.getId());
+                if (userId != null) writeString(record, userId);
+                commit();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void begin(byte type) throws IOException {
+        recordBytes.reset();
+        record.writeByte(type);
+    }
+
+    private void commit() throws IOException {
+        append();
+        // group commit: one fsync covers every record appended since the last one
+        if (unsynced >= GROUP_COMMIT) sync();
+    }
+
+    private void append() throws IOException {
+        byte[] bytes = recordBytes.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        log.writeInt(bytes.length);
+        log.write(bytes);
+        log.writeInt((int) crc.getValue());
+        records++;
+        unsynced++;
+    }
+
+    // Forces everything appended so far to disk.
+    public synchronized void sync() throws IOException {
+        if (unsynced == 0) return;
+        log.flush();
+        logOut.getChannel().force(false);
+        unsynced = 0;
+    }
+
+    // Writes a snapshot once the log has grown large. Must be called while no
+    // circulation is in flight (the console loop calls it between commands).
+    public void compactIfNeeded() throws IOException {
+        if (records >= COMPACT_AFTER) snapshot();
+    }
+
+    // Writes a fresh snapshot and empties the log. Same precondition as compactIfNeeded.
+    public synchronized void snapshot() throws IOException {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos, 64 * 1024), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(imageStamp);
+            out.writeInt(imageRows);
+            out.writeInt(um.count);
+            for (int i = 0; i < um.count; i++) {
+                User u = um.users[i];
+                out.writeByte(userType(u));
+                writeString(out, u.getName());
+                writeString(out, u.getUserId());
+            }
+            // the image has the books themselves; only those not plainly on the shelf follow
+            int changed = 0;
+            for (int i = 0; i < imageRows; i++) {
+                if (hasState(bm.getBook(i))) changed++;
+            }
+            out.writeInt(changed);
+            for (int i = 0; i < imageRows; i++) {
+                Book b = bm.getBook(i);
+                if (!hasState(b)) continue;
+                out.writeInt(i);
+                writeState(out, b);
+            }
+            out.writeInt(bm.count - imageRows);
+            for (int i = imageRows; i < bm.count; i++) {
+                Book b = bm.getBook(i);
+                writeString(out, b.getTitle());
+                writeString(out, b.getAuthor());
+                writeState(out, b);
+            }
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fos.getChannel().force(false);
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // everything in the log is now covered by the snapshot
+        log.flush();
+        logOut.getChannel().truncate(0);
+        startLog();
+        unsynced = 0;
+        records = 0;
+    }
+
+    // Writes the header of an empty log.
+    private void startLog() throws IOException {
+        log.writeInt(LOG_MAGIC);
+        log.flush();
+        logOut.getChannel().force(false);
+    }
+
+    private static boolean hasState(Book b) {
+        return b.isWithdrawn() || b.getBorrowerId() != null || b.getReservationCount() > 0;
+    }
+
+    private static void writeState(DataOutputStream out, Book b) throws IOException {
+        out.writeBoolean(b.isWithdrawn());
+        writeString(out, b.getBorrowerId() != null ? b.getBorrowerId() : "");
+        if (b.getBorrowerId() != null) {
+            out.writeLong(b.getLoanedAt());
+            out.writeBoolean(b.isOnHold());
+        }
+        String[] queue = b.getReservations();
+        out.writeInt(queue.length);
+        for (String userId : queue) writeString(out, userId);
+    }
+
+    // Writes a CatalogImage of every book so far, then a snapshot that refers
+    // to it, so later starts map the image instead of adding each book and
+    // rebuilding the indexes. Same precondition as snapshot. The image is
+    // named by its stamp and the previous one is deleted only once the new
+    // snapshot is in place, so a crash midway leaves the old pair usable.
+    public synchronized void buildImage() throws IOException {
+        long stamp = new Random().nextLong() | 1; // never 0, which stands for "no image"
+        CatalogImage.write(imageFile(stamp), stamp, bm);
+        imageStamp = stamp;
+        imageRows = bm.count;
+        snapshot();
+        deleteImagesExcept(stamp);
+    }
+
+    private File imageFile(long stamp) {
+        return new File(dir, String.format("catalog-%016x.image", stamp));
+    }
+
+    private void deleteImagesExcept(long stamp) {
+        File[] images = dir.listFiles((d, name) -> name.startsWith("catalog-") && name.contains(".image"));
+        if (images == null) return;
+        for (File f : images) {
+            if (stamp == 0 || !f.equals(imageFile(stamp))) f.delete();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        sync();
+        log.close();
+    }
+
+    // ---- recovery ----
+
+    private void loadSnapshot() throws IOException {
+        FileChannel ch = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+        try {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            CRC32 check = new CRC32();
+            ByteBuffer body = buf.duplicate();
+            body.limit(buf.limit() - 4);
+            check.update(body);
+            int magic = buf.limit() < 8 ? 0 : buf.getInt(0);
+            if (magic != SNAPSHOT_MAGIC || buf.getInt(buf.limit() - 4) != (int) check.getValue()) {
+                throw new IOException("Snapshot " + snapshotFile + " is corrupt.");
+            }
+            buf.position(4);
+
+            long stamp = buf.getLong();
+            int rows = buf.getInt();
+            if (stamp != 0) {
+                File file = imageFile(stamp);
+                if (!file.exists()) throw new IOException("Catalog image " + file + " is missing.");
+                CatalogImage image = CatalogImage.open(file);
+                if (image.stamp != stamp || image.rows != rows) {
+                    throw new IOException("Catalog image " + file + " does not belong to snapshot " + snapshotFile + ".");
+                }
+                bm.attachImage(image);
+                imageStamp = stamp;
+                imageRows = rows;
+            }
+
+            int users = buf.getInt();
+            User[] roster = new User[users];
+            for (int i = 0; i < users; i++) {
+                int type = buf.get();
+                String name = readString(buf);
+                roster[i] = newUser(type, name, readString(buf));
+            }
+            um.addUsers(roster);
+
+            int changed = buf.getInt();
+            for (int i = 0; i < changed; i++) readState(buf, bm.getBook(buf.getInt()));
+            int books = buf.getInt();
+            for (int i = 0; i < books; i++) {
+                Book b = new Book(readString(buf), readString(buf));
+                bm.addBook(b);
+                readState(buf, b);
+            }
+        } catch (InvalidUserInputException e) {
+            throw new IOException("Snapshot " + snapshotFile + " is corrupt: " + e.getMessage());
+        } finally {
+            ch.close();
+        }
+    }
+
+    private void readState(ByteBuffer buf, Book b) {
+        if (buf.get() != 0) bm.markWithdrawn(b);
+        String borrowerId = readString(buf);
+        if (!borrowerId.isEmpty()) {
+            long loanedAt = buf.getLong();
+            boolean hold = buf.get() != 0;
+            applyBorrow(b, borrowerId, loanedAt, hold);
+        }
+        int queued = buf.getInt();
+        for (int q = 0; q < queued; q++) b.addReservation(readString(buf));
+    }
+
+    // Replays every intact record; a torn or corrupt tail (crash mid-append) is cut off.
+    private void replayLog() throws IOException {
+        long valid = 0;
+        long size = logFile.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 64 * 1024));
+        try {
+            // shorter than the header: the crash hit startLog, so the log was empty
+            if (size >= 4) {
+                if (in.readInt() != LOG_MAGIC) throw new IOException("Log " + logFile + " is corrupt.");
+                valid = 4;
+            }
+            CRC32 check = new CRC32();
+            byte[] bytes = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    // a length running past the end of the file is a torn (or corrupt) tail
+                    if (length <= 0 || length > size - valid - 8) break;
+                    if (bytes.length < length) bytes = new byte[length];
+                    in.readFully(bytes, 0, length);
+                    check.reset();
+                    check.update(bytes, 0, length);
+                    if (in.readInt() != (int) check.getValue()) break;
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(bytes, 0, length)));
+                valid += 4 + length + 4;
+                records++;
+            }
+        } finally {
+            in.close();
+        }
+        if (valid < logFile.length()) {
+            FileChannel ch = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE);
+            try {
+                ch.truncate(valid);
+            } finally {
+                ch.close();
+            }
+        }
+    }
+
+    // Re-applies a logged change directly to the books and users: the log holds
+    // outcomes, so none of BookManager's rules (or messages) are re-run.
+    private void apply(DataInputStream r) throws IOException {
+        byte type = r.readByte();
+        try {
+            switch (type) {
+                case ADD_BOOK:
+                    bm.addBook(new Book(readString(r), readString(r)));
+                    return;
+                case ADD_USER:
+                    int userType = r.readByte();
+                    String name = readString(r);
+                    um.addUser(newUser(userType, name, readString(r)));
+                    return;
+                case BORROW:
+                    Book lent = bm.getBook(r.readInt());
+                    String userId = readString(r);
+                    long loanedAt = r.readLong();
+                    applyBorrow(lent, userId, loanedAt, r.readBoolean());
+                    return;
+                case RETURN:
+                    Book b = bm.getBook(r.readInt());
+                    User borrower = um.findUserById(b.getBorrowerId());
+                    if (borrower != null) borrower.decrementBorrowed();
+                    bm.unlend(b);
+                    return;
+                case RESERVE:
+                    bm.getBook(r.readInt()).addReservation(readString(r));
+                    return;
+                case POP_RESERVATION:
+                    bm.getBook(r.readInt()).popReservation();
+                    return;
+                case PICKUP:
+                    Book held = bm.getBook(r.readInt());
+                    User collector = um.findUserById(held.getBorrowerId());
+                    long at = r.readLong();
+                    if (collector != null) bm.pickUp(held, collector, at);
+                    return;
+                case WITHDRAW:
+                    bm.markWithdrawn(bm.getBook(r.readInt()));
+                    return;
+                default:
+                    throw new IOException("Unknown log record type " + type);
+            }
+        } catch (InvalidUserInputException e) {
+            throw new IOException("Log " + logFile + " is inconsistent: " + e.getMessage());
+        }
+    }
+
+    // Due dates are recomputed from the loan time; loans that fell due while
+    // the program was down fire on the first processDeadlines.
+    private void applyBorrow(Book b, String userId, long loanedAt, boolean hold) {
+        User u = um.findUserById(userId);
+        long dueAt = 0;
+        if (u != null && loanedAt > 0) {
+            dueAt = hold ? loanedAt + BookManager.HOLD_DAYS * BookManager.DAY_MILLIS : BookManager.dueDate(u, loanedAt);
+        }
+        bm.lend(b, userId, loanedAt, dueAt, hold);
+        if (u != null) u.incrementBorrowed();
+    }
+
+    // ---- encoding helpers ----
+
+    // Same codes as the "Add User" menu: 1-Student, 2-Teacher, 3-Guest.
+    static int userType(User u) {
+        if (u instanceof Student) return 1;
+        if (u instanceof Teacher) return 2;
+        return 3;
+    }
+
+    static User newUser(int type, String name, String id) throws InvalidUserInputException {
+        if (type == 1) return new Student(name, id);
+        if (type == 2) return new Teacher(name, id);
+        if (type == 3) return new Guest(name, id);
+        throw new InvalidUserInputException("Invalid user type.");
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private String readString(DataInputStream r) throws IOException {
+        byte[] bytes = new byte[r.readInt()];
+        r.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// CATALOG IMAGE
+// Read-only file holding what never changes once a book is added: titles, the
+// interned author names, and the search structures BookManager would
+// otherwise rebuild on every start (trigram postings, FuzzyIndex's title and
+// author word dictionaries, books by author). The file is memory-mapped and
+// nothing is read up front: CatalogStore, BookManager and FuzzyIndex take
+// what a request needs from the mapping (see their attach methods), so
+// opening a catalog costs a few page faults whatever its size. Books added
+// later live in memory as usual, after the image's rows. Circulation state
+// is kept by the journal's snapshot, which names its image by stamp.
+//
+// Layout: [int magic][long stamp][int rows][int authors][int sections]
+//         [sections x (long offset, long length)][int crc32 of the above]
+//         then the sections, 8-byte aligned: big-endian ints, longs or UTF-8.
+// Sections are mapped one by one, so each must stay under 2 GB.
+class CatalogImage {
+    static final int MAGIC = 0x424B4931; // "BKI1"
+
+    private static final int TITLE_OFFSETS = 0, TITLE_BYTES = 1;
+    private static final int AUTHOR_OFFSETS = 2, AUTHOR_BYTES = 3, AUTHOR_ORDER = 4, AUTHOR_IDS = 5;
+    private static final int TRIGRAM_KEYS = 6, TRIGRAM_OFFSETS = 7, TRIGRAM_IDS = 8;
+    private static final int TITLE_TERM_OFFSETS = 9, TITLE_TERM_BYTES = 10, TITLE_TERM_POSTINGS = 11, TITLE_TERM_IDS = 12;
+    private static final int AUTHOR_TERM_OFFSETS = 13, AUTHOR_TERM_BYTES = 14, AUTHOR_TERM_POSTINGS = 15, AUTHOR_TERM_IDS = 16;
+    private static final int AUTHOR_BOOK_OFFSETS = 17, AUTHOR_BOOK_IDS = 18;
+    private static final int SECTIONS = 19;
+    private static final int HEADER = 24 + SECTIONS * 16 + 4;
+
+    final long stamp;
+    final int rows;
+    final int authors;
+
+    private final Strings titles;
+    private final Strings authorNames;
+    private final IntBuffer authorOrder; // author ids sorted by name
+    private final IntBuffer authorIds;   // per row
+    private final LongBuffer trigramKeys; // ascending, see trigramKey
+    final Postings trigramIds;
+    final Terms titleTerms;  // ids are book ids
+    final Terms authorTerms; // ids are author ids
+    final Postings authorBooks;
+
+    private CatalogImage(long stamp, int rows, int authors, ByteBuffer[] s) {
+        this.stamp = stamp;
+        this.rows = rows;
+        this.authors = authors;
+        titles = new Strings(s[TITLE_OFFSETS].asIntBuffer(), s[TITLE_BYTES]);
+        authorNames = new Strings(s[AUTHOR_OFFSETS].asIntBuffer(), s[AUTHOR_BYTES]);
+        authorOrder = s[AUTHOR_ORDER].asIntBuffer();
+        authorIds = s[AUTHOR_IDS].asIntBuffer();
+        trigramKeys = s[TRIGRAM_KEYS].asLongBuffer();
+        trigramIds = new Postings(s[TRIGRAM_OFFSETS].asIntBuffer(), s[TRIGRAM_IDS].asIntBuffer());
+        titleTerms = new Terms(new Strings(s[TITLE_TERM_OFFSETS].asIntBuffer(), s[TITLE_TERM_BYTES]),
+                new Postings(s[TITLE_TERM_POSTINGS].asIntBuffer(), s[TITLE_TERM_IDS].asIntBuffer()));
+        authorTerms = new Terms(new Strings(s[AUTHOR_TERM_OFFSETS].asIntBuffer(), s[AUTHOR_TERM_BYTES]),
+                new Postings(s[AUTHOR_TERM_POSTINGS].asIntBuffer(), s[AUTHOR_TERM_IDS].asIntBuffer()));
+        authorBooks = new Postings(s[AUTHOR_BOOK_OFFSETS].asIntBuffer(), s[AUTHOR_BOOK_IDS].asIntBuffer());
+    }
+
+    // Strings stored back to back as UTF-8; string i is bytes [offsets[i], offsets[i+1]).
+    static final class Strings {
+        private final IntBuffer offsets;
+        private final ByteBuffer bytes;
+
+        Strings(IntBuffer offsets, ByteBuffer bytes) {
+            this.offsets = offsets;
+            this.bytes = bytes;
+        }
+
+        int size() { return offsets.limit() - 1; }
+
+        String get(int i) {
+            int from = offsets.get(i);
+            byte[] b = new byte[offsets.get(i + 1) - from];
+            for (int k = 0; k < b.length; k++) b[k] = bytes.get(from + k);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Ascending id lists back to back; list i is ids [offsets[i], offsets[i+1]).
+    static final class Postings {
+        private final IntBuffer offsets;
+        private final IntBuffer ids;
+
+        Postings(IntBuffer offsets, IntBuffer ids) {
+            this.offsets = offsets;
+            this.ids = ids;
+        }
+
+        int size(int i) { return offsets.get(i + 1) - offsets.get(i); }
+
+        int get(int i, int j) { return ids.get(offsets.get(i) + j); }
+
+        IntList copy(int i) {
+            int n = size(i);
+            IntList list = new IntList(Math.max(n, 1));
+            IntBuffer view = ids.duplicate();
+            view.position(offsets.get(i));
+            view.get(list.data, 0, n);
+            list.size = n;
+            return list;
+        }
+    }
+
+    // A word dictionary: words in String order, each with its ascending ids.
+    static final class Terms {
+        final Strings words;
+        final Postings ids;
+
+        Terms(Strings words, Postings ids) {
+            this.words = words;
+            this.ids = ids;
+        }
+
+        // Index of the word, or -1.
+        int find(String word) {
+            int lo = 0;
+            int hi = words.size() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = words.get(mid).compareTo(word);
+                if (c == 0) return mid;
+                if (c < 0) lo = mid + 1;
+                else hi = mid - 1;
+            }
+            return -1;
+        }
+    }
+
+    public String title(int id) { return titles.get(id); }
+
+    public String author(int author) { return authorNames.get(author); }
+
+    public int authorId(int id) { return authorIds.get(id); }
+
+    // Id of the author with exactly this name, or -1.
+    public int findAuthor(String name) {
+        int lo = 0;
+        int hi = authors - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = authorNames.get(authorOrder.get(mid)).compareTo(name);
+            if (c == 0) return authorOrder.get(mid);
+            if (c < 0) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return -1;
+    }
+
+    // The three characters at s[i..i+3) as one key.
+    static long trigramKey(String s, int i) {
+        return (long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2);
+    }
+
+    // Index of the trigram's list in trigramIds, or -1 if no title has it.
+    public int trigram(long key) {
+        int lo = 0;
+        int hi = trigramKeys.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = trigramKeys.get(mid);
+            if (k == key) return mid;
+            if (k < key) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return -1;
+    }
+
+    // ---- opening ----
+
+    public static CatalogImage open(File file) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && ch.read(header) >= 0) {
+                // a short read just means read again
+            }
+            CRC32 check = new CRC32();
+            check.update(header.array(), 0, HEADER - 4);
+            if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(20) != SECTIONS
+                    || header.getInt(HEADER - 4) != (int) check.getValue()) {
+                throw new IOException("Catalog image " + file + " is corrupt.");
+            }
+            ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+            for (int i = 0; i < SECTIONS; i++) {
+                long offset = header.getLong(24 + i * 16);
+                long length = header.getLong(32 + i * 16);
+                if (offset < HEADER || length < 0 || length > Integer.MAX_VALUE || offset + length > ch.size()) {
+                    throw new IOException("Catalog image " + file + " is corrupt.");
+                }
+                sections[i] = ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            return new CatalogImage(header.getLong(4), header.getInt(12), header.getInt(16), sections);
+        } finally {
+            ch.close(); // the mappings stay valid
+        }
+    }
+
+    // ---- writing ----
+
+    // Writes an image of bm's catalog to file, atomically via a temporary
+    // file. Rows keep their ids, withdrawn ones included, since withdrawal is
+    // circulation state. The indexes are built afresh in memory, so a large
+    // catalog needs a large heap. No books may be added meanwhile.
+    public static void write(File file, long stamp, BookManager bm) throws IOException {
+        CatalogStore store = bm.store;
+        int rows = bm.count;
+        int authors = store.authorCount();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            SectionWriter out = new SectionWriter(new DataOutputStream(new BufferedOutputStream(fos, 256 * 1024)));
+            out.writeBytes(new byte[HEADER]); // filled in last
+
+            out.strings(TITLE_OFFSETS, TITLE_BYTES, rows, store::title);
+            out.strings(AUTHOR_OFFSETS, AUTHOR_BYTES, authors, store::authorName);
+            Integer[] order = new Integer[authors];
+            for (int i = 0; i < authors; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> store.authorName(a).compareTo(store.authorName(b)));
+            out.begin(AUTHOR_ORDER);
+            for (Integer a : order) out.writeInt(a);
+            out.end(AUTHOR_ORDER);
+            out.begin(AUTHOR_IDS);
+            for (int id = 0; id < rows; id++) out.writeInt(store.authorId(id));
+            out.end(AUTHOR_IDS);
+
+            // trigrams, as BookManager.indexBook extracts them
+            HashMap<Long, IntList> trigrams = new HashMap<>();
+            for (int id = 0; id < rows; id++) {
+                String lower = store.lowerTitle(id);
+                for (int i = 0; i + 3 <= lower.length(); i++) {
+                    IntList posting = trigrams.computeIfAbsent(trigramKey(lower, i), k -> new IntList());
+                    if (posting.size() == 0 || posting.last() != id) posting.add(id);
+                }
+            }
+            Long[] keys = trigrams.keySet().toArray(new Long[0]);
+            Arrays.sort(keys);
+            out.begin(TRIGRAM_KEYS);
+            for (Long k : keys) out.writeLong(k);
+            out.end(TRIGRAM_KEYS);
+            IntList[] lists = new IntList[keys.length];
+            for (int i = 0; i < keys.length; i++) lists[i] = trigrams.remove(keys[i]);
+            out.postings(TRIGRAM_OFFSETS, TRIGRAM_IDS, lists);
+
+            // words, as FuzzyIndex.add splits them
+            HashMap<String, IntList> words = new HashMap<>();
+            for (int id = 0; id < rows; id++) {
+                for (String w : FuzzyIndex.words(store.lowerTitle(id))) addPosting(words, w, id);
+            }
+            out.terms(TITLE_TERM_OFFSETS, TITLE_TERM_BYTES, TITLE_TERM_POSTINGS, TITLE_TERM_IDS, words);
+            words.clear();
+            for (int a = 0; a < authors; a++) {
+                for (String w : FuzzyIndex.words(store.authorName(a).toLowerCase())) addPosting(words, w, a);
+            }
+            out.terms(AUTHOR_TERM_OFFSETS, AUTHOR_TERM_BYTES, AUTHOR_TERM_POSTINGS, AUTHOR_TERM_IDS, words);
+
+            IntList[] books = new IntList[authors];
+            for (int a = 0; a < authors; a++) books[a] = new IntList(1);
+            for (int id = 0; id < rows; id++) books[store.authorId(id)].add(id);
+            out.postings(AUTHOR_BOOK_OFFSETS, AUTHOR_BOOK_IDS, books);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putLong(stamp).putInt(rows).putInt(authors).putInt(SECTIONS);
+            for (int i = 0; i < SECTIONS; i++) header.putLong(out.offsets[i]).putLong(out.lengths[i]);
+            CRC32 check = new CRC32();
+            check.update(header.array(), 0, HEADER - 4);
+            header.putInt((int) check.getValue());
+            header.flip();
+            fos.getChannel().write(header, 0);
+            fos.getChannel().force(false);
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void addPosting(Map<String, IntList> postings, String word, int id) {
+        IntList posting = postings.computeIfAbsent(word, w -> new IntList(1));
+        if (posting.size() == 0 || posting.last() != id) posting.add(id);
+    }
+
+    private static final class SectionWriter {
+        private final DataOutputStream out;
+        private long position = 0;
+        final long[] offsets = new long[SECTIONS];
+        final long[] lengths = new long[SECTIONS];
+
+        SectionWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void begin(int section) throws IOException {
+            while (position % 8 != 0) writeBytes(new byte[1]);
+            offsets[section] = position;
+        }
+
+        void end(int section) throws IOException {
+            lengths[section] = position - offsets[section];
+            if (lengths[section] > Integer.MAX_VALUE) throw new IOException("Catalog too large for an image: section " + section + " exceeds 2 GB.");
+        }
+
+        void writeInt(int v) throws IOException {
+            out.writeInt(v);
+            position += 4;
+        }
+
+        void writeLong(long v) throws IOException {
+            out.writeLong(v);
+            position += 8;
+        }
+
+        void writeBytes(byte[] b) throws IOException {
+            out.write(b);
+            position += b.length;
+        }
+
+        // n strings as UTF-8, then their offsets.
+        void strings(int offsetsSection, int bytesSection, int n, IntFunction<String> get) throws IOException {
+            int[] starts = new int[n + 1];
+            begin(bytesSection);
+            for (int i = 0; i < n; i++) {
+                writeBytes(get.apply(i).getBytes(StandardCharsets.UTF_8));
+                starts[i + 1] = (int) Math.min(position - offsets[bytesSection], Integer.MAX_VALUE);
+            }
+            end(bytesSection);
+            begin(offsetsSection);
+            for (int start : starts) writeInt(start);
+            end(offsetsSection);
+        }
+
+        // The lists back to back, then where each starts.
+        void postings(int offsetsSection, int idsSection, IntList[] lists) throws IOException {
+            begin(idsSection);
+            for (IntList list : lists) {
+                for (int i = 0; i < list.size(); i++) writeInt(list.get(i));
+            }
+            end(idsSection);
+            begin(offsetsSection);
+            int start = 0;
+            writeInt(0);
+            for (IntList list : lists) {
+                start += list.size();
+                writeInt(start);
+            }
+            end(offsetsSection);
+        }
+
+        void terms(int offsetsSection, int bytesSection, int postingsSection, int idsSection, Map<String, IntList> words) throws IOException {
+            String[] sorted = words.keySet().toArray(new String[0]);
+            Arrays.sort(sorted);
+            strings(offsetsSection, bytesSection, sorted.length, i -> sorted[i]);
+            IntList[] lists = new IntList[sorted.length];
+            for (int i = 0; i < sorted.length; i++) lists[i] = words.get(sorted[i]);
+            postings(postingsSection, idsSection, lists);
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
+
+// BULK CATALOG IMPORT
+// Streams a CSV or TSV catalog dump into a BookManager. The file is mapped
+// in fixed-size chunks, each chunk is parsed in parallel slices on the
+// fork-join pool, and rows are deduplicated on normalized title + author
+// (against the existing catalog too) before one bulk insert per chunk.
+// Heap use is bounded by the chunk size plus about 26 bytes per distinct book:
+// a 64-bit hash of the title and author and the id of the first book with it.
+// Rows whose hash matches are compared on the actual text, so a hash
+// collision never drops a distinct book.
+//
+// Fields may be quoted ("Guns, Germs, and Steel"), with "" for a literal quote.
+// Quoted fields may not span lines. If the first row has "title" and "author"
+// columns it is treated as a header; otherwise title and author are the
+// first two columns.
+class CatalogImporter {
+    private static final int CHUNK = 32 * 1024 * 1024;
+
+    private final BookManager bm;
+    // key -> catalog id of the first book with it, or -1 - index in the pending batch
+    private final LongIntHashMap seen = new LongIntHashMap();
+    // normalized "title \0 author" of later books whose key was already taken
+    private final Set<String> collided = new HashSet<>();
+    private final ForkJoinPool pool;
+    int chunkSize = CHUNK;
+
+    int added = 0;
+    int duplicates = 0;
+    int malformed = 0;
+
+    public CatalogImporter(BookManager bm) {
+        this(bm, ForkJoinPool.commonPool());
+    }
+
+    public CatalogImporter(BookManager bm, ForkJoinPool pool) {
+        this.bm = bm;
+        this.pool = pool;
+        for (int i = 0; i < bm.count; i++) {
+            firstSighting(bm.store.title(i), bm.store.author(i), i, null);
+        }
+    }
+
+    // Adds {title, author} rows, skipping ones already in the catalog.
+    public void importRows(String[][] rows) {
+        List<Book> batch = new ArrayList<>(rows.length);
+        for (String[] row : rows) accept(row[0], row[1], batch);
+        insert(batch);
+    }
+
+    public void importFile(File file) throws IOException {
+        char delimiter = file.getName().toLowerCase().endsWith(".tsv") ? '\t' : ',';
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            long pos = 0;
+            int titleCol = 0;
+            int authorCol = 1;
+            boolean first = true;
+            while (pos < size) {
+                MappedByteBuffer chunk = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(chunkSize, size - pos));
+                int end = chunk.limit();
+                if (pos + end < size) {
+                    // stop after the last complete line; the rest starts the next chunk
+                    while (end > 0 && chunk.get(end - 1) != '\n') end--;
+                    if (end == 0) throw new IOException("Line longer than " + chunkSize + " bytes in " + file);
+                }
+
+                if (first) {
+                    first = false;
+                    int eol = lineEnd(chunk, 0, end);
+                    List<String> header = parseLine(chunk, 0, eol, delimiter);
+                    int t = indexOfIgnoreCase(header, "title");
+                    int a = indexOfIgnoreCase(header, "author");
+                    if (t >= 0 && a >= 0) {
+                        titleCol = t;
+                        authorCol = a;
+                        chunk.position(Math.min(eol + 1, end));
+                    }
+                }
+
+                List<String[]> rows = parseChunk(chunk, chunk.position(), end, delimiter, titleCol, authorCol);
+                List<Book> batch = new ArrayList<>(rows.size());
+                for (String[] row : rows) {
+                    if (row == null) malformed++;
+                    else accept(row[0], row[1], batch);
+                }
+                insert(batch);
+                pos += end;
+            }
+        } finally {
+            ch.close();
+        }
+    }
+
+    private void accept(String title, String author, List<Book> batch) {
+        title = title.trim();
+        author = author.trim();
+        if (title.isEmpty()) {
+            malformed++;
+        } else if (firstSighting(title, author, -1 - batch.size(), batch)) {
+            batch.add(new Book(title, author));
+            added++;
+        } else {
+            duplicates++;
+        }
+    }
+
+    // Adds the batch, then points the keys it claimed at the new catalog ids.
+    private void insert(List<Book> batch) {
+        bm.addBooks(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            Book b = batch.get(i);
+            long k = hash(b.getTitle(), b.getAuthor());
+            if (seen.get(k) == -1 - i) seen.put(k, b.getId());
+        }
+    }
+
+    // True unless a book with the same normalized title and author was seen
+    // before. id is where this book will be found if its key is new.
+    private boolean firstSighting(String title, String author, int id, List<Book> batch) {
+        int first = seen.putIfAbsent(hash(title, author), id);
+        if (first == LongIntHashMap.MISSING) return true;
+        Book other = first >= 0 ? bm.getBook(first) : batch.get(-1 - first);
+        String text = normalize(title) + '\0' + normalize(author);
+        if (text.equals(normalize(other.getTitle()) + '\0' + normalize(other.getAuthor()))) return false;
+        return collided.add(text); // same hash, different book
+    }
+
+    // Splits [from, to) into slices at line boundaries and parses them in parallel.
+    // Rows come back in file order; a null row marks a malformed line.
+    private List<String[]> parseChunk(final ByteBuffer chunk, int from, int to, final char delimiter,
+                                      final int titleCol, final int authorCol) {
+        int slices = Math.max(1, Math.min(pool.getParallelism() * 4, (to - from) / (64 * 1024)));
+        List<Callable<List<String[]>>> tasks = new ArrayList<>(slices);
+        int start = from;
+        for (int s = 1; s <= slices && start < to; s++) {
+            int end = s == slices ? to : Math.min(to, lineEnd(chunk, from + (int) ((long) (to - from) * s / slices), to) + 1);
+            final int sliceStart = start;
+            final int sliceEnd = end;
+            tasks.add(new Callable<List<String[]>>() {
+                public List<String[]> call() {
+                    List<String[]> rows = new ArrayList<>();
+                    ByteBuffer view = chunk.duplicate();
+                    int p = sliceStart;
+                    while (p < sliceEnd) {
+                        int eol = lineEnd(view, p, sliceEnd);
+                        if (eol > p && !(eol == p + 1 && view.get(p) == '\r')) {
+                            List<String> fields = parseLine(view, p, eol, delimiter);
+                            rows.add(fields.size() > Math.max(titleCol, authorCol)
+                                    ? new String[] { fields.get(titleCol), fields.get(authorCol) }
+                                    : null);
+                        }
+                        p = eol + 1;
+                    }
+                    return rows;
+                }
+            });
+            start = end;
+        }
+
+        List<String[]> all = new ArrayList<>();
+        for (Future<List<String[]>> f : pool.invokeAll(tasks)) {
+            try {
+                all.addAll(f.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Import interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Import failed", e.getCause());
+            }
+        }
+        return all;
+    }
+
+    // Index of the '\n' ending the line that contains p, or limit if there is none.
+    private static int lineEnd(ByteBuffer buf, int p, int limit) {
+        while (p < limit && buf.get(p) != '\n') p++;
+        return p;
+    }
+
+    private static List<String> parseLine(ByteBuffer buf, int from, int to, char delimiter) {
+        if (to > from && buf.get(to - 1) == '\r') to--;
+        List<String> fields = new ArrayList<>(4);
+        byte[] field = new byte[Math.max(16, to - from)];
+        int p = from;
+        while (true) {
+            int len = 0;
+            if (p < to && buf.get(p) == '"') {
+                p++;
+                while (p < to) {
+                    byte c = buf.get(p++);
+                    if (c == '"') {
+                        if (p < to && buf.get(p) == '"') {
+                            field[len++] = '"';
+                            p++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        field[len++] = c;
+                    }
+                }
+                while (p < to && buf.get(p) != delimiter) p++; // ignore junk after the closing quote
+            } else {
+                while (p < to && buf.get(p) != delimiter) field[len++] = buf.get(p++);
+            }
+            fields.add(new String(field, 0, len, StandardCharsets.UTF_8));
+            if (p >= to) return fields;
+            p++; // skip the delimiter
+        }
+    }
+
+    private static int indexOfIgnoreCase(List<String> header, String name) {
+        for (int i = 0; i < header.size(); i++) {
+            if (header.get(i).trim().equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    // The dedupe key; tests override it to force collisions.
+    long hash(String title, String author) {
+        return key(title, author);
+    }
+
+    // 64-bit FNV-1a of the normalized title and author (case-folded, runs of
+    // whitespace collapsed). Must agree with normalize().
+    static long key(String title, String author) {
+        long h = 0xcbf29ce484222325L;
+        h = hashNormalized(h, title);
+        h = (h ^ 0x1F) * 0x100000001b3L; // field separator
+        return hashNormalized(h, author);
+    }
+
+    private static long hashNormalized(long h, String s) {
+        boolean started = false;
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && started) h = (h ^ ' ') * 0x100000001b3L;
+            space = false;
+            started = true;
+            h = (h ^ Character.toLowerCase(c)) * 0x100000001b3L;
+        }
+        return h;
+    }
 
-class BookNotFoundException extends Exception {
-    public BookNotFoundException(String msg) {
-        super(msg);
+    static String normalize(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && sb.length() > 0) sb.append(' ');
+            space = false;
+            sb.append(Character.toLowerCase(c));
+        }
+        return sb.toString();
     }
 }
 
-// ABSTRACT USER CLASS
-abstract class User {
-    private String name;
-    private String userId;
-    private int maxBorrowLimit;
-    private int currentlyBorrowed;
+// Open-addressing map from long to int (no boxing), used for import deduplication.
+class LongIntHashMap {
+    static final int MISSING = Integer.MIN_VALUE;
 
-    public User(String name, String userId, int maxBorrowLimit) {
-        this.name = name;
-        this.userId = userId;
-        this.maxBorrowLimit = maxBorrowLimit;
-        this.currentlyBorrowed = 0;
+    private long[] keys = new long[1024];
+    private int[] values = new int[1024];
+    private boolean[] used = new boolean[1024];
+    private int size = 0;
+
+    public int size() { return size; }
+
+    public int get(long k) {
+        int i = find(k);
+        return used[i] ? values[i] : MISSING;
     }
 
-    public String getName() { return name; }
-    public String getUserId() { return userId; }
-    public int getMaxBorrowLimit() { return maxBorrowLimit; }
-    public int getCurrentlyBorrowed() { return currentlyBorrowed; }
+    public void put(long k, int v) {
+        if (putIfAbsent(k, v) != MISSING) values[find(k)] = v;
+    }
 
-    public void incrementBorrowed() { currentlyBorrowed++; }
-    public void decrementBorrowed() { if (currentlyBorrowed > 0) currentlyBorrowed--; }
+    // Returns the value already stored for k, or MISSING after storing v.
+    public int putIfAbsent(long k, int v) {
+        if ((size + 1) * 2 > keys.length) resize();
+        int i = find(k);
+        if (used[i]) return values[i];
+        used[i] = true;
+        keys[i] = k;
+        values[i] = v;
+        size++;
+        return MISSING;
+    }
 
-    // Abstract method for polymorphism
-    public abstract boolean canBorrow(int currentlyBorrowed);
+    // The slot holding k, or the empty slot where it would go.
+    private int find(long k) {
+        int mask = keys.length - 1;
+        int i = (int) (k ^ (k >>> 32)) * 0x9E3779B9 & mask;
+        while (used[i] && keys[i] != k) i = (i + 1) & mask;
+        return i;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) putIfAbsent(oldKeys[i], oldValues[i]);
+        }
+    }
 }
 
-// SUBCLASSES
-class Student extends User {
-    public Student(String name, String id) {
-        super(name, id, 3);
+// BATCH MODE
+// Runs a stream of tab-separated commands through the same managers as the
+// menu, without prompts. One result line per command:
+//   <line number> TAB <ResultCode> [TAB <detail>]
+// Result lines are written in batches, each only after the journal has
+// synced the changes behind it.
+//
+// Commands (fields separated by TAB; blank lines and lines starting with # are skipped):
+//   add-user  <1|2|3 or student|teacher|guest>  <name>  <user id>
+//   add-book  <title>  <author>
+//   borrow    <user id>  <title>
+//   return    <user id>  <title>
+//   reserve   <user id>  <title>
+//   import    <path to CSV/TSV catalog>
+//   loans     <user id>               (detail: titles the user currently has)
+//   return-all <user id>              (returns everything the user has)
+//   overdue                           (detail: overdue titles and who has them)
+//   find      <words>                 (detail: up to 10 titles, typo-tolerant, titles and authors)
+//   metrics   <path>                  (writes the runtime metrics there, Prometheus text format)
+//   top       <titles|authors>  <n>   (detail: the n most borrowed this month, with counts)
+//
+// Due dates and hold expiries are processed before each command.
+class BatchRunner {
+    private final BookManager bm;
+    private final UserManager um;
+    private static final int ACK_BATCH = 64 * 1024; // chars of results per journal sync
+
+    private final String[] fields = new String[4];
+    private ResultCode lastCode;
+    LibraryAnalytics analytics; // null when not collected
+    CatalogJournal journal;     // null when nothing is saved
+
+    int commands = 0;
+    int failures = 0;
+
+    public BatchRunner(BookManager bm, UserManager um) {
+        this.bm = bm;
+        this.um = um;
     }
 
-    @Override
-    public boolean canBorrow(int borrowed) {
-        return borrowed < 3;
+    public void run(BufferedReader in, Writer out) throws IOException {
+        boolean wasVerbose = bm.verbose;
+        bm.verbose = false;
+        StringBuilder pending = new StringBuilder(ACK_BATCH + 1024);
+        try {
+            String line;
+            int lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                if (line.isEmpty() || line.charAt(0) == '#') continue;
+                commands++;
+                bm.processDeadlines(um);
+                String detail = execute(line);
+                if (lastCode != ResultCode.OK) failures++;
+                pending.append(lineNo).append('\t').append(lastCode.name());
+                if (detail != null) pending.append('\t').append(detail);
+                pending.append('\n');
+                // acknowledge before blocking on input, so an interactive caller is answered
+                if (pending.length() >= ACK_BATCH || !in.ready()) acknowledge(pending, out);
+            }
+            acknowledge(pending, out);
+        } finally {
+            bm.verbose = wasVerbose;
+        }
     }
-}
 
-class Teacher extends User {
-    public Teacher(String name, String id) {
-        super(name, id, 5);
+    // Writes out the pending result lines once the journal has their changes on
+    // disk, so no OK that was printed can be lost in a crash. One fsync covers
+    // every command in the batch.
+    private void acknowledge(StringBuilder pending, Writer out) throws IOException {
+        if (journal != null) journal.sync();
+        out.append(pending);
+        out.flush();
+        pending.setLength(0);
     }
 
-    @Override
-    public boolean canBorrow(int borrowed) {
-        return borrowed < 5;
+    // Runs one command, leaving its code in lastCode; returns the optional detail.
+    private String execute(String line) {
+        int n = split(line);
+        String cmd = fields[0];
+        try {
+            if (cmd.equals("add-user") && n == 4) {
+                um.addUser(CatalogJournal.newUser(userType(fields[1]), fields[2], fields[3]));
+                return done(ResultCode.OK);
+            }
+            if (cmd.equals("add-book") && n == 3) {
+                bm.addBook(new Book(fields[1], fields[2]));
+                return done(ResultCode.OK);
+            }
+            if ((cmd.equals("loans") || cmd.equals("return-all")) && n == 2) {
+                User u = um.findUserById(fields[1]);
+                if (u == null) return done(ResultCode.USER_NOT_FOUND);
+                lastCode = ResultCode.OK;
+                if (cmd.equals("return-all")) return bm.returnAllBooks(u, um) + " returned";
+                StringBuilder titles = new StringBuilder();
+                for (Book b : bm.getLoans(u.getUserId())) {
+                    if (titles.length() > 0) titles.append("; ");
+                    titles.append(b.getTitle());
+                }
+                return titles.toString();
+            }
+            if (cmd.equals("overdue") && n == 1) {
+                lastCode = ResultCode.OK;
+                StringBuilder titles = new StringBuilder();
+                for (Book b : bm.getOverdueBooks()) {
+                    if (titles.length() > 0) titles.append("; ");
+                    titles.append(b.getTitle()).append(" (").append(b.getBorrowerId()).append(")");
+                }
+                return titles.toString();
+            }
+            if (cmd.equals("find") && n == 2) {
+                List<Book> found = bm.fuzzySearch(fields[1], 10);
+                if (found.isEmpty()) return done(ResultCode.BOOK_NOT_FOUND);
+                lastCode = ResultCode.OK;
+                StringBuilder titles = new StringBuilder();
+                for (Book b : found) {
+                    if (titles.length() > 0) titles.append("; ");
+                    titles.append(b.getTitle());
+                }
+                return titles.toString();
+            }
+            if (cmd.equals("metrics") && n == 2) {
+                if (bm.metrics == null) {
+                    lastCode = ResultCode.INVALID_COMMAND;
+                    return "metrics are not enabled";
+                }
+                try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fields[1]), StandardCharsets.UTF_8))) {
+                    bm.metrics.writeText(w);
+                }
+                return done(ResultCode.OK);
+            }
+            if (cmd.equals("top") && n == 3 && (fields[1].equals("titles") || fields[1].equals("authors"))) {
+                if (analytics == null) {
+                    lastCode = ResultCode.INVALID_COMMAND;
+                    return "analytics are not enabled";
+                }
+                int count;
+                try {
+                    count = Integer.parseInt(fields[2]);
+                } catch (NumberFormatException e) {
+                    return done(ResultCode.INVALID_COMMAND);
+                }
+                // include the commands before this one
+                analytics.catchUp();
+                lastCode = ResultCode.OK;
+                StringBuilder top = new StringBuilder();
+                for (TopK.Entry e : fields[1].equals("titles") ? analytics.topTitles(count, 1) : analytics.topAuthors(count, 1)) {
+                    if (top.length() > 0) top.append("; ");
+                    top.append(e);
+                }
+                return top.toString();
+            }
+            if (cmd.equals("import") && n == 2) {
+                CatalogImporter importer = new CatalogImporter(bm);
+                importer.importFile(new File(fields[1]));
+                lastCode = ResultCode.OK;
+                return importer.added + " added, " + importer.duplicates + " duplicates, " + importer.malformed + " malformed";
+            }
+            if ((cmd.equals("borrow") || cmd.equals("return") || cmd.equals("reserve")) && n == 3) {
+                User u = um.findUserById(fields[1]);
+                if (u == null) return done(ResultCode.USER_NOT_FOUND);
+                Book b = bm.findBookByTitle(fields[2]);
+                if (b == null) return done(ResultCode.BOOK_NOT_FOUND);
+
+                if (cmd.equals("borrow")) {
+                    lastCode = bm.borrowBook(u, b);
+                    return b.getTitle();
+                }
+                if (cmd.equals("reserve")) {
+                    lastCode = bm.reserveBook(b, u);
+                    return "position " + b.getReservationPosition(u.getUserId());
+                }
+                lastCode = bm.returnBook(b, u, um);
+                // report who the book went to if a reservation picked it up
+                String next = b.getBorrowerId();
+                return lastCode == ResultCode.OK && next != null ? "assigned " + next : b.getTitle();
+            }
+            return done(ResultCode.INVALID_COMMAND);
+        } catch (IOException e) {
+            lastCode = ResultCode.INVALID_COMMAND;
+            return e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lastCode = ResultCode.INVALID_COMMAND;
+            return "interrupted";
+        } catch (InvalidUserInputException e) {
+            lastCode = cmd.equals("add-user") && fields[1] != null && isUserType(fields[1])
+                    ? ResultCode.DUPLICATE_USER : ResultCode.INVALID_COMMAND;
+            return e.getMessage();
+        }
     }
-}
 
-class Guest extends User {
-    public Guest(String name, String id) {
-        super(name, id, 1);
+    private String done(ResultCode code) {
+        lastCode = code;
+        return null;
     }
 
-    @Override
-    public boolean canBorrow(int borrowed) {
-        return borrowed < 1;
+    private static boolean isUserType(String s) {
+        try {
+            userType(s);
+            return true;
+        } catch (InvalidUserInputException e) {
+            return false;
+        }
+    }
+
+    private static int userType(String s) throws InvalidUserInputException {
+        if (s.equals("1") || s.equalsIgnoreCase("student")) return 1;
+        if (s.equals("2") || s.equalsIgnoreCase("teacher")) return 2;
+        if (s.equals("3") || s.equalsIgnoreCase("guest")) return 3;
+        throw new InvalidUserInputException("Invalid user type.");
+    }
+
+    // Splits on TAB into fields[] without regex; returns the field count
+    // (anything past the last field stays in it).
+    private int split(String line) {
+        int n = 0;
+        int start = 0;
+        while (n < fields.length - 1) {
+            int tab = line.indexOf('\t', start);
+            if (tab < 0) break;
+            fields[n++] = line.substring(start, tab);
+            start = tab + 1;
+        }
+        fields[n++] = line.substring(start);
+        return n;
     }
 }
 
-// BOOK CLASS
-class Book {
-    private String title;
-    private String author;
-    private boolean isAvailable;
-    private String borrowerId;
-    private String[] reservationQueue = new String[10];
-    private int queueCount = 0;
+// NETWORK SERVICE
+// HTTP/JSON front end over the same managers, so several desks (or other
+// programs) can use one catalog at once. Built on the JDK's own HTTP server,
+// which keeps connections alive and answers pipelined requests in order.
+// Each request runs on its own virtual thread when the JVM has them (Java 21+),
+// otherwise on a fixed pool.
+//
+//   GET  /search?title=<text>                      ranked title matches
+//   GET  /find?q=<words>[&limit=<n>]               typo-tolerant title/author search
+//   GET  /book?id=<id> | ?title=<title>            one book
+//   GET  /books?cursor=<id>&limit=<n>[&available=true]   one page of the catalog
+//   GET  /loans?user=<user id>                     books the user has
+//   GET  /overdue                                  overdue books
+//   POST /borrow|/return|/reserve?user=<user id>&id=<id> (or &title=<title>)
+//   GET  /metrics                                  runtime metrics, Prometheus text format
+//   GET  /events[?from=<seq>][&limit=<n>]          recent changes from the ChangeFeed, oldest first
+//   GET  /analytics[?top=<n>][&months=<n>]         most borrowed titles/authors, use by user type, reservation waits
+//
+// Every other response is a JSON object with a "code" field holding the ResultCode
+// name. Changes are on disk before they are answered; concurrent requests
+// share each fsync (see handle).
+class LibraryServer {
+    private static final int MAX_PAGE = 1000;
 
-    public Book(String title, String author) {
-        this.title = title;
-        this.author = author;
-        this.isAvailable = true;
-        this.borrowerId = null;
+    static {
+        // The JDK server writes headers and body separately; without TCP_NODELAY
+        // a pipelined batch stalls on Nagle + delayed ACK. Must be set before the
+        // server implementation reads its configuration.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
     }
 
-    public String getTitle() { return title; }
-    public String getAuthor() { return author; }
-    public boolean isAvailable() { return isAvailable; }
-    public String getBorrowerId() { return borrowerId; }
+    private final BookManager bm;
+    private final UserManager um;
+    private final CatalogJournal journal;
+    private final HttpServer http;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService maintenance;
+    LibraryAnalytics analytics; // null when not collected
 
-    public void borrowBook(String userId) {
-        isAvailable = false;
-        borrowerId = userId;
+    // Requests hold this shared; compaction takes it exclusively, since a
+    // snapshot must not run while circulation is in flight.
+    private final StampedLock quiesce = new StampedLock();
+
+    public LibraryServer(BookManager bm, UserManager um, CatalogJournal journal, int port) throws IOException {
+        this.bm = bm;
+        this.um = um;
+        this.journal = journal;
+        bm.verbose = false;
+        http = HttpServer.create(new InetSocketAddress(port), 1024);
+        http.createContext("/", this::handle);
+        workers = newWorkerPool();
+        http.setExecutor(workers);
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "booktrack-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
-    public void returnBook() {
-        isAvailable = true;
-        borrowerId = null;
+    // Virtual threads are looked up reflectively so the program still builds for Java 8.
+    private static ExecutorService newWorkerPool() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Math.max(8, Runtime.getRuntime().availableProcessors() * 4));
+        }
+    }
+
+    public void start() {
+        http.start();
+        // due dates and hold expiries once a second, compaction when the log is large
+        maintenance.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.SECONDS);
     }
 
-    public void addReservation(String userId) {
-        if (queueCount < 10) {
-            reservationQueue[queueCount++] = userId;
+    public int getPort() { return http.getAddress().getPort(); }
+
+    public void stop() {
+        http.stop(1);
+        maintenance.shutdown();
+        workers.shutdown();
+    }
+
+    // Stops, lets the requests in flight finish, then saves a snapshot (as
+    // menu option 9 does) and closes the journal. The write lock keeps out
+    // any request or maintenance run still going after the wait.
+    public void shutdown() throws IOException {
+        stop();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (journal == null) return;
+        long stamp = quiesce.writeLock();
+        try {
+            journal.snapshot();
+            journal.close();
+        } finally {
+            quiesce.unlockWrite(stamp);
         }
     }
 
-    public String popReservation() {
-        if (queueCount == 0) return null;
-        String next = reservationQueue[0];
-        for (int i = 1; i < queueCount; i++) {
-            reservationQueue[i - 1] = reservationQueue[i];
+    private void maintain() {
+        try {
+            long stamp = quiesce.readLock();
+            try {
+                bm.processDeadlines(um);
+                if (journal != null) journal.sync();
+            } finally {
+                quiesce.unlockRead(stamp);
+            }
+            if (journal != null) {
+                stamp = quiesce.writeLock();
+                try {
+                    journal.compactIfNeeded();
+                } finally {
+                    quiesce.unlockWrite(stamp);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Maintenance failed: " + e.getMessage());
         }
-        queueCount--;
-        return next;
     }
 
-    public int getReservationCount() { return queueCount; }
-}
+    private void handle(HttpExchange ex) throws IOException {
+        if (ex.getRequestURI().getPath().equals("/metrics") && bm.metrics != null) {
+            StringWriter text = new StringWriter(4096);
+            bm.metrics.writeText(text);
+            send(ex, 200, "text/plain; version=0.0.4; charset=utf-8", text.toString());
+            return;
+        }
 
-// USER MANAGER
-class UserManager {
-    User[] users = new User[50];
-    int count = 0;
+        int status;
+        StringBuilder json = new StringBuilder(256);
+        try {
+            Map<String, String> params = parseQuery(ex.getRequestURI().getRawQuery());
+            String path = ex.getRequestURI().getPath();
+            boolean post = ex.getRequestMethod().equals("POST");
+            ResultCode code;
+            long stamp = quiesce.readLock();
+            try {
+                code = post ? update(path, params, json) : query(path, params, json);
+                // Blocks until this request's journal records are on disk. Requests
+                // that arrive during another's fsync wait on the journal monitor and
+                // are then covered by a single fsync together.
+                if (post && code == ResultCode.OK && journal != null) journal.sync();
+            } finally {
+                quiesce.unlockRead(stamp);
+            }
+            status = statusOf(code);
+            json.insert(0, "{\"code\":\"" + code.name() + "\"").append('}');
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            json.setLength(0);
+            json.append("{\"code\":\"").append(ResultCode.INVALID_COMMAND.name()).append("\",\"error\":");
+            quote(json, e.getMessage()).append('}');
+        }
+        send(ex, status, "application/json; charset=utf-8", json.toString());
+    }
 
-    public void addUser(User u) {
-        users[count++] = u;
+    private static void send(HttpExchange ex, int status, String contentType, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", contentType);
+        ex.sendResponseHeaders(status, body.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(body);
+        }
     }
 
-    public User findUserById(String id) {
-        for (int i = 0; i < count; i++) {
-            if (users[i].getUserId().equals(id)) return users[i];
+    private ResultCode query(String path, Map<String, String> params, StringBuilder json) {
+        switch (path) {
+            case "/search": {
+                int limit = limitParam(params, 50);
+                json.append(",\"books\":");
+                return books(json, bm.searchBooksByTitle(required(params, "title"), limit));
+            }
+            case "/find": {
+                int limit = limitParam(params, 10);
+                json.append(",\"books\":");
+                return books(json, bm.fuzzySearch(required(params, "q"), limit));
+            }
+            case "/book": {
+                Book b = book(params);
+                if (b == null) return ResultCode.BOOK_NOT_FOUND;
+                json.append(",\"book\":");
+                book(json, b);
+                return ResultCode.OK;
+            }
+            case "/books": {
+                int cursor = intParam(params, "cursor", 0);
+                int limit = limitParam(params, 50);
+                Predicate<Book> filter = "true".equals(params.get("available")) ? BookFilters.available() : BookFilters.all();
+                BookPage page = bm.listBooks(filter, cursor, limit);
+                json.append(",\"next\":").append(page.getNextCursor()).append(",\"books\":");
+                return books(json, page.getBooks());
+            }
+            case "/loans": {
+                String userId = required(params, "user");
+                if (um.findUserById(userId) == null) return ResultCode.USER_NOT_FOUND;
+                json.append(",\"books\":");
+                return books(json, bm.getLoans(userId));
+            }
+            case "/overdue":
+                json.append(",\"books\":");
+                return books(json, bm.getOverdueBooks());
+            case "/events": {
+                ChangeFeed feed = bm.feed;
+                if (feed == null) return ResultCode.INVALID_COMMAND;
+                String from = params.get("from");
+                long start = from != null ? parseLong(from, "from") : feed.oldest();
+                List<LibraryEvent> events = feed.read(start, limitParam(params, 100));
+                json.append(",\"next\":").append(start + events.size()).append(",\"events\":[");
+                for (int i = 0; i < events.size(); i++) {
+                    if (i > 0) json.append(',');
+                    event(json, events.get(i));
+                }
+                json.append(']');
+                return ResultCode.OK;
+            }
+            case "/analytics": {
+                if (analytics == null) return ResultCode.INVALID_COMMAND;
+                int top = Math.min(intParam(params, "top", 10), LibraryAnalytics.TOP_K);
+                int months = Math.min(Math.max(intParam(params, "months", 1), 1), LibraryAnalytics.MONTHS);
+                analytics(json, analytics, top, months);
+                return ResultCode.OK;
+            }
+            default:
+                return ResultCode.INVALID_COMMAND;
         }
-        return null;
     }
 
-        public void displayUsers() {
-        System.out.println("\n--------------------------------------- USER LIST --------------------------------------");
-        
-        // Header
-        System.out.printf("%-50s %-10s %-10s %-12s%n", "Name", "ID", "Borrowed", "User Type");
-        System.out.println("----------------------------------------------------------------------------------------");
-        
-        for (int i = 0; i < count; i++) {
-            User u = users[i];
+    private ResultCode update(String path, Map<String, String> params, StringBuilder json) {
+        if (!path.equals("/borrow") && !path.equals("/return") && !path.equals("/reserve")) {
+            return ResultCode.INVALID_COMMAND;
+        }
+        User u = um.findUserById(required(params, "user"));
+        if (u == null) return ResultCode.USER_NOT_FOUND;
+        Book b = book(params);
+        if (b == null) return ResultCode.BOOK_NOT_FOUND;
 
-            // Identify user type
-            String type;
-            if (u instanceof Student) type = "Student";
-            else if (u instanceof Teacher) type = "Teacher";
-            else type = "Guest";
+        ResultCode code;
+        if (path.equals("/borrow")) code = bm.borrowBook(u, b);
+        else if (path.equals("/return")) code = bm.returnBook(b, u, um);
+        else code = bm.reserveBook(b, u);
+        json.append(",\"book\":");
+        book(json, b);
+        return code;
+    }
 
-            // Print user info in aligned columns
-            System.out.printf("%-50s %-10s %-10d %-12s%n", 
-                            u.getName(), u.getUserId(), u.getCurrentlyBorrowed(), type);
+    // By id if given, else by exact title (case-insensitive); null if there is
+    // no such book. A title shared by several books is refused: the caller
+    // has to pick one by id, since borrowing the wrong copy is not harmless.
+    private Book book(Map<String, String> params) {
+        String id = params.get("id");
+        if (id != null) {
+            int n = parseInt(id, "id");
+            return n >= 0 && n < bm.count && !bm.getBook(n).isWithdrawn() ? bm.getBook(n) : null;
         }
+        String title = required(params, "title");
+        String search = title.toLowerCase();
+        // exact titles rank first, so two results are enough to tell
+        List<Book> found = bm.searchBooksByTitle(title, 2);
+        if (found.isEmpty() || !found.get(0).getTitle().toLowerCase().equals(search)) return null;
+        if (found.size() > 1 && found.get(1).getTitle().toLowerCase().equals(search)) {
+            throw new IllegalArgumentException("Several books are titled '" + title + "'; give id instead.");
+        }
+        return found.get(0);
     }
-}
 
-// ELAINE'S PART
-// BOOK MANAGER
-class BookManager {
-    Book[] books = new Book[1000];
-    int count = 0;
+    private static int statusOf(ResultCode code) {
+        switch (code) {
+            case OK: return 200;
+            case USER_NOT_FOUND:
+            case BOOK_NOT_FOUND: return 404;
+            case INVALID_COMMAND: return 400;
+            default: return 409; // refused by the circulation rules
+        }
+    }
 
-    public void addBook(Book b) {
-        books[count++] = b;
+    // ---- JSON ----
+
+    private static ResultCode books(StringBuilder json, List<Book> books) {
+        json.append('[');
+        for (int i = 0; i < books.size(); i++) {
+            if (i > 0) json.append(',');
+            book(json, books.get(i));
+        }
+        json.append(']');
+        return ResultCode.OK;
     }
 
-        public Book searchBookByTitle(String title) throws BookNotFoundException {
-        String search = title.toLowerCase(); // convert input to lowercase
+    private static void book(StringBuilder json, Book b) {
+        json.append("{\"id\":").append(b.getId()).append(",\"title\":");
+        quote(json, b.getTitle()).append(",\"author\":");
+        quote(json, b.getAuthor()).append(",\"available\":").append(b.isAvailable());
+        if (!b.isAvailable()) {
+            json.append(",\"borrower\":");
+            quote(json, b.getBorrowerId()).append(",\"dueAt\":").append(b.getDueAt())
+                .append(",\"onHold\":").append(b.isOnHold()).append(",\"overdue\":").append(b.isOverdue());
+        }
+        json.append(",\"reservations\":").append(b.getReservationCount()).append('}');
+    }
 
-        for (int i = 0; i < count; i++) {
-            // compare lowercase + partial
-            if (books[i].getTitle().toLowerCase().contains(search)) {
-                return books[i];
-            }
+    private static void event(StringBuilder json, LibraryEvent e) {
+        json.append("{\"seq\":").append(e.sequence).append(",\"type\":\"").append(e.type.name())
+            .append("\",\"time\":").append(e.time);
+        if (e.bookId >= 0) {
+            json.append(",\"bookId\":").append(e.bookId).append(",\"title\":");
+            quote(json, e.title).append(",\"author\":");
+            quote(json, e.author);
         }
+        if (e.userId != null) {
+            json.append(",\"user\":");
+            quote(json, e.userId);
+        }
+        if (e.userType >= 0) json.append(",\"userType\":\"").append(LibraryMetrics.USER_TYPES[e.userType]).append('"');
+        if (e.dueAt > 0) json.append(",\"dueAt\":").append(e.dueAt);
+        if (e.position > 0) json.append(",\"position\":").append(e.position);
+        json.append('}');
+    }
 
-        throw new BookNotFoundException("Book titled '" + title + "' not found.");
+    private static void analytics(StringBuilder json, LibraryAnalytics a, int top, int months) {
+        json.append(",\"months\":").append(months).append(",\"titles\":");
+        ranking(json, a.topTitles(top, months), "title");
+        json.append(",\"authors\":");
+        ranking(json, a.topAuthors(top, months), "author");
+        json.append(",\"userTypes\":[");
+        for (int t = 0; t < LibraryMetrics.USER_TYPES.length; t++) {
+            if (t > 0) json.append(',');
+            json.append("{\"type\":\"").append(LibraryMetrics.USER_TYPES[t]).append("\",\"users\":").append(a.users(t))
+                .append(",\"loans\":").append(a.loans(t)).append(",\"utilization\":").append(a.utilization(t))
+                .append(",\"borrows\":").append(a.borrows(t, months)).append('}');
+        }
+        Histogram.Snapshot wait = a.reservationWait(months);
+        json.append("],\"reservationWait\":{\"count\":").append(wait.count).append(",\"meanMillis\":").append(wait.mean())
+            .append(",\"p50Millis\":").append(wait.valueAt(0.5)).append(",\"p90Millis\":").append(wait.valueAt(0.9))
+            .append(",\"maxMillis\":").append(wait.max).append('}');
     }
 
-    public void borrowBook(User u, Book b) {
-        if (!b.isAvailable()) {
-            System.out.println("Book is currently borrowed.");
-            return;
+    private static void ranking(StringBuilder json, List<TopK.Entry> entries, String field) {
+        json.append('[');
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"").append(field).append("\":");
+            quote(json, entries.get(i).key).append(",\"borrows\":").append(entries.get(i).count).append('}');
         }
-        if (u.canBorrow(u.getCurrentlyBorrowed())) {
-            b.borrowBook(u.getUserId());
-            u.incrementBorrowed();
-            System.out.println("Borrow successful!");
-        } else {
-            System.out.println("Borrow limit reached!");
+        json.append(']');
+    }
+
+    private static StringBuilder quote(StringBuilder json, String s) {
+        if (s == null) return json.append("null");
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') json.append('\\').append(c);
+            else if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
         }
+        return json.append('"');
     }
 
-    public void returnBook(Book b, User returningUser, UserManager um) {
-        // Check if the book is actually borrowed
-        if (b.isAvailable()) {
-            System.out.println("This book is not currently borrowed!");
-            return;
+    // ---- request parameters ----
+
+    private static Map<String, String> parseQuery(String raw) {
+        Map<String, String> params = new HashMap<>();
+        if (raw == null || raw.isEmpty()) return params;
+        try {
+            for (String pair : raw.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq < 0) params.put(URLDecoder.decode(pair, "UTF-8"), "");
+                else params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e); // UTF-8 is always supported
         }
+        return params;
+    }
 
-        // Check if the returning user is the one who borrowed it
-        if (!b.getBorrowerId().equals(returningUser.getUserId())) {
-            System.out.println("This user did not borrow this book. Return denied!");
-            return;
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) throw new IllegalArgumentException("Missing parameter: " + name);
+        return value;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int dflt) {
+        String value = params.get(name);
+        return value == null ? dflt : parseInt(value, name);
+    }
+
+    // The limit parameter: at least 1, and capped at MAX_PAGE.
+    private static int limitParam(Map<String, String> params, int dflt) {
+        int limit = intParam(params, "limit", dflt);
+        if (limit < 1) throw new IllegalArgumentException("limit must be at least 1");
+        return Math.min(limit, MAX_PAGE);
+    }
+
+    private static int parseInt(String value, String name) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + name + "=" + value);
         }
+    }
 
-        b.returnBook();
-        returningUser.decrementBorrowed();
-        System.out.println("Book returned successfully by user: " + returningUser.getName() + " (" + returningUser.getUserId() + ")");
+    private static long parseLong(String value, String name) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + name + "=" + value);
+        }
+    }
+}
 
-        // Assign to next reserved user if any
-        while (b.getReservationCount() > 0) {
-            String nextUserId = b.popReservation();
-            User nextUser = um.findUserById(nextUserId);
+// LOAD GENERATOR
+// Client for measuring LibraryServer throughput without outside tools:
+//   java BookTrack --load <host:port> [connections] [seconds] [pipeline depth]
+// Each connection is one thread on a kept-alive socket that writes `depth`
+// GET /search requests back to back, then reads the same number of responses,
+// so the server always has a full pipeline to work through. Queries cycle
+// through a fixed list of popular titles. Prints requests per second, the
+// error count and the mean round trip of a pipelined batch.
+class LoadGenerator {
+    private static final String[] QUERIES = {
+        "Harry Potter", "Atomic Habits", "The Hobbit", "Clean Code", "Dune",
+        "Pride and Prejudice", "The Great Gatsby", "Sapiens", "1984", "Effective Java"
+    };
 
-            if (nextUser != null) {
-                if (nextUser.getCurrentlyBorrowed() >= nextUser.getMaxBorrowLimit()) {
-                    System.out.println("Next user " + nextUser.getName() + " has reached borrow limit. Skipping...");
-                    continue;
-                }
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int depth;
 
-                b.borrowBook(nextUserId);
-                nextUser.incrementBorrowed();
-                System.out.println("Book automatically assigned to next user in line: " + nextUser.getName() + " (" + nextUser.getUserId() + ")");
-                break;
-            }
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public LoadGenerator(String host, int port, int connections, int depth) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.depth = depth;
+    }
+
+    public void run(int seconds, PrintStream out) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            final int offset = i;
+            threads[i] = new Thread(() -> drive(offset, deadline), "booktrack-load-" + i);
+            threads[i].start();
         }
+        for (Thread t : threads) t.join();
+
+        long done = completed.get();
+        long n = batches.get();
+        out.printf("%d requests in %d s: %.0f req/s, %d errors, %.2f ms per batch of %d%n",
+                done, seconds, done / (double) seconds, errors.get(),
+                n == 0 ? 0.0 : batchNanos.get() / (double) n / 1_000_000, depth);
     }
 
+    private void drive(int offset, long deadline) {
+        byte[][] requests = new byte[QUERIES.length][];
+        for (int i = 0; i < QUERIES.length; i++) {
+            String target = "/search?title=" + QUERIES[i].replace(" ", "+");
+            requests[i] = ("GET " + target + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            int next = offset;
+            while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+                for (int i = 0; i < depth; i++) {
+                    out.write(requests[next++ % requests.length]);
+                }
+                out.flush();
+                for (int i = 0; i < depth; i++) {
+                    if (readResponse(in) != 200) errors.incrementAndGet();
+                }
+                batchNanos.addAndGet(System.nanoTime() - start);
+                batches.incrementAndGet();
+                completed.addAndGet(depth);
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            System.err.println("Connection " + offset + " failed: " + e.getMessage());
+        }
+    }
 
+    // Reads one response off the stream and returns its status. The server
+    // always sends Content-Length, so chunked bodies are not handled.
+    private static int readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        int length = 0;
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).equalsIgnoreCase("Content-Length")) {
+                length = Integer.parseInt(line.substring(colon + 1).trim());
+            }
+        }
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() < 0) throw new EOFException("Connection closed mid-response");
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+        return status;
+    }
 
-    public void reserveBook(Book b, String userId) {
-        b.addReservation(userId);
-        System.out.println("Reservation added!");
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) throw new EOFException("Connection closed mid-response");
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
     }
 }
 
@@ -248,6 +5709,12 @@ class BookManager {
 // MAIN PROGRAM
 public class BookTrack {
     public static void main(String[] args) {
+        // java BookTrack --load <host:port> [connections] [seconds] [depth]  measures a running server
+        if (args.length >= 2 && args[0].equals("--load")) {
+            runLoad(args);
+            return;
+        }
+
         Scanner sc = new Scanner(System.in);
         UserManager um = new UserManager();
         BookManager bm = new BookManager();
@@ -358,11 +5825,65 @@ public class BookTrack {
             {"Cracking the Coding Interview", "Gayle Laakmann McDowell"}
         };
 
-        for (String[] b : defaultBooks) {
-            bm.addBook(new Book(b[0], b[1]));
+        // Restore the saved catalog and users; seed the sample books on first run only.
+        CatalogJournal journal = null;
+        try {
+            journal = CatalogJournal.open(new File("booktrack-data"), bm, um);
+        } catch (IOException e) {
+            System.out.println("Could not load saved data (" + e.getMessage() + "). Changes will not be saved.");
+        }
+
+        if (bm.count == 0) {
+            // the list repeats a few titles; the importer drops the copies
+            new CatalogImporter(bm).importRows(defaultBooks);
+        }
+
+        // Hot-path timings and outcome counts, visible over JMX (e.g. jconsole)
+        LibraryMetrics metrics = new LibraryMetrics();
+        bm.metrics = metrics;
+        um.metrics = metrics;
+
+        // Changes from here on are published for subscribers and GET /events
+        ChangeFeed feed = new ChangeFeed(1 << 16);
+        bm.feed = feed;
+        um.feed = feed;
+
+        // Popularity, use by user type and reservation waits, kept up to date from the feed
+        LibraryAnalytics analytics = new LibraryAnalytics();
+        analytics.start(um, feed);
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            System.err.println("Metrics are not available over JMX: " + e.getMessage());
+        }
+
+        // java BookTrack --import <catalog.csv|.tsv>  bulk-loads a catalog dump and exits
+        if (args.length == 2 && args[0].equals("--import")) {
+            runImport(args[1], bm, journal);
+            return;
+        }
+
+        // java BookTrack --build-image  writes a catalog image for fast starts and exits
+        if (args.length == 1 && args[0].equals("--build-image")) {
+            runBuildImage(bm, journal);
+            return;
+        }
+
+        // java BookTrack --batch <file|->  runs commands without the menu
+        if (args.length == 2 && args[0].equals("--batch")) {
+            runBatch(args[1], bm, um, journal, analytics);
+            return;
+        }
+
+        // java BookTrack --serve <port>  runs the HTTP service until the process is stopped
+        if (args.length == 2 && args[0].equals("--serve")) {
+            runServer(args[1], bm, um, journal, analytics);
+            return;
         }
 
         while (true) {
+            bm.processDeadlines(um); // report overdue loans and lapsed holds
+
             System.out.println("\n=============================");
             System.out.println("      BOOKTRACK SYSTEM");
             System.out.println("=============================");
@@ -417,11 +5938,21 @@ public class BookTrack {
                     case 3:
                         System.out.print("\nEnter title to search: ");
                         String st = sc.nextLine();
-                        Book found = bm.searchBookByTitle(st);
-                        System.out.println("Book Found!");
-                        System.out.println("Title: " + found.getTitle());
-                        System.out.println("Author: " + found.getAuthor());
-                        System.out.println("Available: " + found.isAvailable());
+                        List<Book> matches = bm.searchBooksByTitle(st);
+                        if (matches.isEmpty()) {
+                            // no title contains the text as typed; allow typos and author names
+                            matches = bm.fuzzySearch(st, 5);
+                            if (matches.isEmpty()) {
+                                throw new BookNotFoundException("Book titled '" + st + "' not found.");
+                            }
+                            System.out.println("No exact match. Did you mean:");
+                        }
+                        System.out.println(matches.size() == 1 ? "Book Found!" : matches.size() + " Books Found!");
+                        for (Book found : matches) {
+                            System.out.println("\nTitle: " + found.getTitle());
+                            System.out.println("Author: " + found.getAuthor());
+                            System.out.println("Available: " + found.isAvailable());
+                        }
                         break;
 
                     case 4:
@@ -477,7 +6008,7 @@ public class BookTrack {
                         String rbt2 = sc.nextLine();
                         try {
                             Book rb2 = bm.searchBookByTitle(rbt2);
-                            bm.reserveBook(rb2, rid);
+                            bm.reserveBook(rb2, reservingUser);
                         } catch (BookNotFoundException bnfe) {
                             System.out.println("Book not found. Cannot add reservation.");
                         }
@@ -488,23 +6019,15 @@ public class BookTrack {
                         break;
 
                     case 8:
-                        System.out.println("\n-------------------------------------------------------- BOOK LIST -----------------------------------------------------");
-                        // Header row
-                        System.out.printf("%-70s %-12s %-12s %-12s%n", "Title", "Available", "Borrower", "Reservations");
-                        System.out.println("------------------------------------------------------------------------------------------------------------------------");
-                        
-                        for (int i = 0; i < bm.count; i++) {
-                            Book book = bm.books[i];
-                            System.out.printf("%-70s %-12s %-12s %-12d%n",
-                                            book.getTitle(),
-                                            book.isAvailable(),
-                                            book.getBorrowerId() != null ? book.getBorrowerId() : "None",
-                                            book.getReservationCount());
-                        }
+                        bm.displayBooks();
                         break;
 
 
                     case 9:
+                        if (journal != null) {
+                            journal.snapshot();
+                            journal.close();
+                        }
                         System.out.println("Thank you for using BookTrack!!!");
                         return;
 
@@ -514,6 +6037,114 @@ public class BookTrack {
             } catch (Exception e) {
                 System.out.println(e.getMessage());
             }
+
+            // group commit: this command's changes reach disk before the next prompt
+            if (journal != null) {
+                try {
+                    journal.sync();
+                    journal.compactIfNeeded();
+                } catch (IOException e) {
+                    System.out.println("Could not save changes: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void runImport(String file, BookManager bm, CatalogJournal journal) {
+        long start = System.nanoTime();
+        CatalogImporter importer = new CatalogImporter(bm);
+        try {
+            importer.importFile(new File(file));
+            if (journal != null) {
+                journal.snapshot();
+                journal.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Import failed: " + e.getMessage());
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+        System.out.println(importer.added + " books added, " + importer.duplicates + " duplicates skipped, "
+                + importer.malformed + " malformed rows, " + ms + " ms");
+    }
+
+    private static void runBuildImage(BookManager bm, CatalogJournal journal) {
+        if (journal == null) {
+            System.out.println("Cannot build a catalog image without the booktrack-data folder.");
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            journal.buildImage();
+            journal.close();
+        } catch (IOException e) {
+            System.out.println("Building the catalog image failed: " + e.getMessage());
+            return;
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+        System.out.println("Catalog image of " + bm.count + " books written, " + ms + " ms");
+    }
+
+    private static void runLoad(String[] args) {
+        try {
+            int colon = args[1].lastIndexOf(':');
+            String host = colon > 0 ? args[1].substring(0, colon) : "localhost";
+            int port = Integer.parseInt(args[1].substring(colon + 1));
+            int connections = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+            int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+            int depth = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+            new LoadGenerator(host, port, connections, depth).run(seconds, System.out);
+        } catch (NumberFormatException e) {
+            System.err.println("Usage: java BookTrack --load <host:port> [connections] [seconds] [pipeline depth]");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void runServer(String port, BookManager bm, UserManager um, CatalogJournal journal, LibraryAnalytics analytics) {
+        LibraryServer server;
+        try {
+            server = new LibraryServer(bm, um, journal, Integer.parseInt(port));
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Cannot serve on port " + port + ": " + e.getMessage());
+            return;
+        }
+        server.analytics = analytics;
+        // Ctrl+C: stop taking requests, then save a snapshot
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.shutdown();
+            } catch (IOException e) {
+                System.err.println("Could not save data: " + e.getMessage());
+            }
+        }));
+        server.start();
+        System.err.println("BookTrack serving on port " + server.getPort());
+    }
+
+    private static void runBatch(String source, BookManager bm, UserManager um, CatalogJournal journal, LibraryAnalytics analytics) {
+        long start = System.nanoTime();
+        BatchRunner runner = new BatchRunner(bm, um);
+        runner.analytics = analytics;
+        runner.journal = journal;
+        try {
+            Reader reader = source.equals("-")
+                    ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                    : new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8);
+            BufferedReader in = new BufferedReader(reader, 64 * 1024);
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024);
+            try {
+                runner.run(in, out);
+            } finally {
+                in.close();
+            }
+            if (journal != null) {
+                journal.snapshot();
+                journal.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Batch failed: " + e.getMessage());
         }
+        long ms = (System.nanoTime() - start) / 1000000;
+        System.err.println(runner.commands + " commands, " + runner.failures + " not OK, " + ms + " ms");
     }
 }
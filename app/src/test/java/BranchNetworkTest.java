@@ -0,0 +1,134 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// BranchNetwork: merged searches, transfers between branches, and one
+// borrow limit across every branch.
+class BranchNetworkTest {
+
+    private BranchNetwork net;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        net = new BranchNetwork("Central", "North", "South");
+        net.setVerbose(false);
+        net.addUser(new Student("Ana", "s1"));
+        net.addUser(new Guest("Gil", "g1"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        net.close();
+    }
+
+    private Book add(int branch, String title, String author) {
+        Book b = new Book(title, author);
+        net.addBook(branch, b);
+        return b;
+    }
+
+    private static List<String> titles(List<Book> books) {
+        List<String> titles = new ArrayList<>();
+        for (Book b : books) titles.add(b.getTitle());
+        return titles;
+    }
+
+    @Test
+    void searchMergesRankingsFromEveryBranch() {
+        add(0, "Dune Messiah", "Frank Herbert");
+        add(1, "Children of Dune", "Frank Herbert");
+        add(1, "Emma", "Jane Austen");
+        add(2, "Dune", "Frank Herbert");
+        add(2, "Dunes of the World", "Sandy Shore");
+
+        // exact title, then title prefixes (shorter first), then a word inside the title
+        List<Book> found = net.searchBooksByTitle("dune", 10);
+        assertEquals(Arrays.asList("Dune", "Dune Messiah", "Dunes of the World", "Children of Dune"), titles(found));
+        assertEquals(2, net.branchOf(found.get(0)));
+        assertEquals(0, net.branchOf(found.get(1)));
+        assertEquals(1, net.branchOf(found.get(3)));
+        assertEquals(Arrays.asList("Dune", "Dune Messiah"), titles(net.searchBooksByTitle("DUNE", 2)));
+
+        assertEquals(3, net.fuzzySearch("frank herbrt", 10).size());
+        assertEquals("Emma", net.fuzzySearch("austen", 10).get(0).getTitle());
+    }
+
+    @Test
+    void transferMovesBookToOtherBranch() {
+        Book dune = add(0, "Dune", "Frank Herbert");
+
+        assertEquals(ResultCode.OK, net.transferBook(dune, 2));
+        assertEquals(2, net.branchOf(dune));
+        assertEquals("Dune", dune.getTitle());
+        assertTrue(net.branch(0).searchBooksByTitle("dune").isEmpty());
+        assertEquals(1, net.branch(2).searchBooksByTitle("dune").size());
+        assertEquals(1, net.searchBooksByTitle("dune", 10).size());
+
+        // the moved book circulates at its new branch
+        assertEquals(ResultCode.OK, net.borrowBook(net.findUserById("s1"), dune));
+        assertEquals("s1", net.branch(2).getBook(dune.getId()).getBorrowerId());
+    }
+
+    @Test
+    void transferRefusesBooksInCirculation() {
+        Book lent = add(0, "Dune", "Frank Herbert");
+        Book reserved = add(0, "Emma", "Jane Austen");
+        assertEquals(ResultCode.OK, net.borrowBook(net.findUserById("s1"), lent));
+        assertEquals(ResultCode.OK, net.reserveBook(reserved, net.findUserById("g1")));
+
+        assertEquals(ResultCode.IN_CIRCULATION, net.transferBook(lent, 1));
+        assertEquals(ResultCode.IN_CIRCULATION, net.transferBook(reserved, 1));
+        assertEquals(0, net.branchOf(lent));
+        assertEquals(0, net.branchOf(reserved));
+        assertEquals(0, net.branch(1).count);
+
+        // once returned and handed to the next in line, it is on hold: still refused
+        assertEquals(ResultCode.OK, net.reserveBook(lent, net.findUserById("g1")));
+        assertEquals(ResultCode.OK, net.returnBook(lent, net.findUserById("s1")));
+        assertTrue(lent.isOnHold());
+        assertEquals(ResultCode.IN_CIRCULATION, net.transferBook(lent, 1));
+    }
+
+    @Test
+    void borrowLimitCountsLoansAtEveryBranch() {
+        Book[] books = new Book[4];
+        for (int i = 0; i < books.length; i++) books[i] = add(i % 3, "Book " + i, "Author");
+        User ana = net.findUserById("s1");
+        User gil = net.findUserById("g1");
+
+        assertEquals(ResultCode.OK, net.borrowBook(ana, books[0]));
+        assertEquals(ResultCode.OK, net.borrowBook(ana, books[1]));
+        assertEquals(ResultCode.OK, net.borrowBook(ana, books[2]));
+        assertEquals(ResultCode.LIMIT_REACHED, net.borrowBook(ana, books[3])); // students may have 3
+        assertEquals(3, net.getLoans("s1").size());
+
+        assertEquals(ResultCode.OK, net.returnBook(books[1], ana));
+        assertEquals(ResultCode.OK, net.borrowBook(gil, books[1]));
+        assertEquals(ResultCode.LIMIT_REACHED, net.borrowBook(gil, books[3])); // guests may have 1
+        assertEquals(ResultCode.OK, net.borrowBook(ana, books[3]));
+    }
+
+    @Test
+    void transferIsPublished() {
+        ChangeFeed feed = new ChangeFeed(1 << 6);
+        net.setFeed(feed);
+        Book dune = add(0, "Dune", "Frank Herbert");
+        int oldId = dune.getId();
+
+        assertEquals(ResultCode.OK, net.transferBook(dune, 1));
+        List<LibraryEvent> events = feed.read(0, 10);
+        assertEquals(3, events.size());
+        assertEquals(LibraryEvent.Type.BOOK_ADDED, events.get(0).type);
+        assertEquals(LibraryEvent.Type.BOOK_ADDED, events.get(1).type); // at the new branch
+        assertEquals(LibraryEvent.Type.WITHDRAWN, events.get(2).type);
+        assertEquals(oldId, events.get(2).bookId);
+        assertEquals("Dune", events.get(2).title);
+    }
+}
@@ -0,0 +1,134 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// CatalogImage files: writing and mapping them back, and the journal's
+// check that a snapshot is paired with the image it was written for.
+class CatalogImageTest {
+
+    @TempDir
+    File dir;
+
+    private static BookManager catalog() {
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        bm.addBook(new Book("Harry Potter and the Goblet of Fire", "J.K. Rowling"));
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        bm.addBook(new Book("Children of Dune", "Frank Herbert"));
+        bm.addBook(new Book("Les Misérables", "Victor Hugo"));
+        bm.addBook(new Book("1984", "George Orwell"));
+        return bm;
+    }
+
+    private static List<String> titles(List<Book> books) {
+        List<String> titles = new ArrayList<>();
+        for (Book b : books) titles.add(b.getTitle());
+        return titles;
+    }
+
+    private File imageFile() {
+        File[] images = dir.listFiles((d, name) -> name.endsWith(".image"));
+        assertEquals(1, images.length);
+        return images[0];
+    }
+
+    @Test
+    void mappedImageAnswersLikeTheCatalogItWasWrittenFrom() throws Exception {
+        BookManager original = catalog();
+        File file = new File(dir, "test.image");
+        CatalogImage.write(file, 42, original);
+
+        CatalogImage image = CatalogImage.open(file);
+        assertEquals(42, image.stamp);
+        assertEquals(5, image.rows);
+        assertEquals(4, image.authors);
+
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        bm.attachImage(image);
+        assertEquals(5, bm.count);
+        for (int id = 0; id < 5; id++) {
+            assertEquals(original.getBook(id).getTitle(), bm.getBook(id).getTitle());
+            assertEquals(original.getBook(id).getAuthor(), bm.getBook(id).getAuthor());
+        }
+        for (String q : new String[] { "dune", "MISÉR", "198", "goblet of" }) {
+            assertEquals(titles(original.searchBooksByTitle(q)), titles(bm.searchBooksByTitle(q)), q);
+        }
+        for (String q : new String[] { "herbrt", "rowling goblet", "1984", "hugo" }) {
+            assertEquals(titles(original.fuzzySearch(q, 10)), titles(bm.fuzzySearch(q, 10)), q);
+        }
+
+        // books added later follow the image's rows and are found alongside them
+        bm.addBook(new Book("Dune Messiah", "Frank Herbert"));
+        assertEquals(5, bm.findBookByTitle("dune messiah").getId());
+        assertEquals(3, bm.searchBooksByTitle("dune").size());
+        assertEquals(3, bm.fuzzySearch("frank herbert", 10).size());
+    }
+
+    @Test
+    void damagedHeaderIsRejected() throws Exception {
+        File file = new File(dir, "test.image");
+        CatalogImage.write(file, 42, catalog());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(12);
+            raf.writeInt(6); // row count no longer matches the header checksum
+        }
+
+        assertThrows(IOException.class, () -> CatalogImage.open(file));
+    }
+
+    @Test
+    void journalRestartsFromImage() throws Exception {
+        BookManager bm = catalog();
+        UserManager um = new UserManager();
+        CatalogJournal journal = CatalogJournal.open(dir, bm, um);
+        um.addUser(new Student("Ana", "s1"));
+        assertEquals(ResultCode.OK, bm.borrowBook(um.findUserById("s1"), bm.getBook(1)));
+        journal.buildImage();
+        bm.addBook(new Book("Dune Messiah", "Frank Herbert"));
+        journal.close();
+
+        bm = new BookManager();
+        bm.verbose = false;
+        um = new UserManager();
+        CatalogJournal.open(dir, bm, um).close();
+        assertEquals(6, bm.count);
+        assertEquals("s1", bm.getBook(1).getBorrowerId());
+        assertEquals(1, um.findUserById("s1").getCurrentlyBorrowed());
+        assertEquals(3, bm.searchBooksByTitle("dune").size());
+    }
+
+    @Test
+    void snapshotRefusesAnImageWithAnotherStamp() throws Exception {
+        BookManager bm = catalog();
+        CatalogJournal journal = CatalogJournal.open(dir, bm, new UserManager());
+        journal.buildImage();
+        File first = new File(dir, "first.copy");
+        Files.copy(imageFile().toPath(), first.toPath());
+        journal.buildImage(); // a new stamp; the first image is deleted
+        journal.close();
+
+        // put the stale image where the snapshot expects the current one
+        File current = imageFile();
+        assertFalse(current.getName().equals(first.getName()));
+        Files.copy(first.toPath(), current.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        IOException e = assertThrows(IOException.class, () -> CatalogJournal.open(dir, new BookManager(), new UserManager()));
+        assertTrue(e.getMessage().contains("does not belong"), e.getMessage());
+
+        assertTrue(current.delete());
+        e = assertThrows(IOException.class, () -> CatalogJournal.open(dir, new BookManager(), new UserManager()));
+        assertTrue(e.getMessage().contains("missing"), e.getMessage());
+    }
+}
@@ -0,0 +1,137 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// CatalogImporter parsing CSV/TSV dumps and deduplicating rows.
+class CatalogImporterTest {
+
+    @TempDir
+    File dir;
+
+    private BookManager bm;
+
+    @BeforeEach
+    void setUp() {
+        bm = new BookManager();
+        bm.verbose = false;
+    }
+
+    private File write(String name, String text) throws IOException {
+        File f = new File(dir, name);
+        Files.write(f.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return f;
+    }
+
+    private String title(int id) {
+        return bm.store.title(id);
+    }
+
+    private String author(int id) {
+        return bm.store.author(id);
+    }
+
+    @Test
+    void readsQuotedFieldsAndHeader() throws Exception {
+        CatalogImporter importer = new CatalogImporter(bm);
+        importer.importFile(write("books.csv",
+                "isbn,Author,Title\n"
+                        + "1,Jared Diamond,\"Guns, Germs, and Steel\"\n"
+                        + "2,\"Douglas \"\"Doug\"\" Adams\",Mostly Harmless\n"
+                        + "3,nobody\n"));
+
+        assertEquals(2, importer.added);
+        assertEquals(1, importer.malformed);
+        assertEquals("Guns, Germs, and Steel", title(0));
+        assertEquals("Jared Diamond", author(0));
+        assertEquals("Douglas \"Doug\" Adams", author(1));
+    }
+
+    @Test
+    void stripsCrlfLineEnds() throws Exception {
+        CatalogImporter importer = new CatalogImporter(bm);
+        importer.importFile(write("books.tsv", "Dune\tFrank Herbert\r\n\r\nEmma\tJane Austen\r\n"));
+
+        assertEquals(2, bm.count);
+        assertEquals("Frank Herbert", author(0));
+        assertEquals("Emma", title(1));
+        assertEquals("Jane Austen", author(1));
+    }
+
+    @Test
+    void quotedRecordAcrossChunkBoundaryIsKept() throws Exception {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            csv.append("\"Volume ").append(i).append(", \"\"annotated\"\"\",\"Author, ").append(i).append("\"\r\n");
+        }
+        CatalogImporter importer = new CatalogImporter(bm);
+        importer.chunkSize = 100; // every chunk ends partway through a record
+        importer.importFile(write("books.csv", csv.toString()));
+
+        assertEquals(200, importer.added);
+        assertEquals(0, importer.malformed);
+        for (int i = 0; i < 200; i++) {
+            assertEquals("Volume " + i + ", \"annotated\"", title(i));
+            assertEquals("Author, " + i, author(i));
+        }
+    }
+
+    @Test
+    void parallelSlicesKeepFileOrder() throws Exception {
+        StringBuilder tsv = new StringBuilder();
+        for (int i = 0; i < 40000; i++) tsv.append("Title ").append(i).append("\tAuthor ").append(i % 7).append('\n');
+        CatalogImporter importer = new CatalogImporter(bm);
+        importer.chunkSize = 300 * 1024;
+        importer.importFile(write("books.tsv", tsv.toString()));
+
+        assertEquals(40000, bm.count);
+        for (int i = 0; i < 40000; i += 997) assertEquals("Title " + i, title(i));
+    }
+
+    @Test
+    void skipsDuplicatesIgnoringCaseAndSpacing() throws Exception {
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        CatalogImporter importer = new CatalogImporter(bm);
+        importer.importRows(new String[][] {
+                { "  DUNE ", "frank   herbert" },
+                { "Emma", "Jane Austen" },
+                { "emma", "jane austen" },
+                { "Emma", "Someone Else" },
+        });
+        importer.importRows(new String[][] { { "EMMA", "Jane  Austen" } });
+
+        assertEquals(3, bm.count);
+        assertEquals(2, importer.added);
+        assertEquals(3, importer.duplicates);
+    }
+
+    @Test
+    void hashCollisionKeepsDistinctBooks() throws Exception {
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        CatalogImporter importer = new CatalogImporter(bm) {
+            @Override
+            long hash(String title, String author) {
+                return 42; // every row collides
+            }
+        };
+        importer.importRows(new String[][] {
+                { "Emma", "Jane Austen" },
+                { "dune", "frank herbert" },
+                { "Persuasion", "Jane Austen" },
+                { "EMMA", "jane austen" },
+        });
+        importer.importRows(new String[][] { { "Persuasion", "Jane Austen" }, { "Ulysses", "James Joyce" } });
+
+        assertEquals(4, bm.count);
+        assertEquals("Emma", title(1));
+        assertEquals("Persuasion", title(2));
+        assertEquals("Ulysses", title(3));
+        assertEquals(3, importer.duplicates);
+    }
+}
@@ -0,0 +1,169 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Recovery of CatalogJournal's data folder: log replay, snapshots, and damaged files.
+class CatalogJournalTest {
+
+    @TempDir
+    File dir;
+
+    private BookManager bm;
+    private UserManager um;
+    private CatalogJournal journal;
+
+    private void open() throws IOException {
+        bm = new BookManager();
+        bm.verbose = false;
+        um = new UserManager();
+        journal = CatalogJournal.open(dir, bm, um);
+    }
+
+    private void reopen() throws IOException {
+        journal.close();
+        open();
+    }
+
+    private File log() {
+        return new File(dir, "catalog.wal");
+    }
+
+    private void seed() throws Exception {
+        um.addUser(new Student("Ana", "s1"));
+        um.addUser(new Teacher("Ben", "t1"));
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        bm.addBook(new Book("Emma", "Jane Austen"));
+        assertEquals(ResultCode.OK, bm.borrowBook(um.findUserById("s1"), bm.getBook(0)));
+        assertEquals(ResultCode.OK, bm.reserveBook(bm.getBook(0), um.findUserById("t1")));
+    }
+
+    private void assertSeeded() {
+        assertEquals(2, um.count);
+        assertEquals(2, bm.count);
+        assertEquals("Dune", bm.getBook(0).getTitle());
+        assertEquals("s1", bm.getBook(0).getBorrowerId());
+        assertEquals(1, um.findUserById("s1").getCurrentlyBorrowed());
+        assertArrayEquals(new String[]{"t1"}, bm.getBook(0).getReservations());
+        assertTrue(bm.getBook(1).isAvailable());
+    }
+
+    @Test
+    void replaysLogAfterRestart() throws Exception {
+        open();
+        seed();
+        reopen();
+        assertSeeded();
+    }
+
+    @Test
+    void replaysLogTailOnTopOfSnapshot() throws Exception {
+        open();
+        seed();
+        journal.snapshot();
+        assertEquals(4, log().length()); // just the header
+        assertEquals(ResultCode.OK, bm.returnBook(bm.getBook(0), um.findUserById("s1"), um));
+        reopen();
+
+        // the return handed the book to t1, who was first in line
+        assertEquals("t1", bm.getBook(0).getBorrowerId());
+        assertTrue(bm.getBook(0).isOnHold());
+        assertEquals(0, bm.getBook(0).getReservationCount());
+        assertEquals(0, um.findUserById("s1").getCurrentlyBorrowed());
+        assertEquals(1, um.findUserById("t1").getCurrentlyBorrowed());
+    }
+
+    @Test
+    void cutsOffTornTail() throws Exception {
+        open();
+        seed();
+        journal.close();
+        long intact = log().length();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(log(), true))) {
+            out.writeInt(100); // a record cut short by a crash
+            out.write(new byte[10]);
+        }
+
+        open();
+        assertSeeded();
+        assertEquals(intact, log().length());
+        // new records go after the intact ones
+        bm.addBook(new Book("Ulysses", "James Joyce"));
+        reopen();
+        assertEquals("Ulysses", bm.getBook(2).getTitle());
+    }
+
+    @Test
+    void dropsRecordWithBadChecksum() throws Exception {
+        open();
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        bm.addBook(new Book("Emma", "Jane Austen"));
+        bm.addBook(new Book("Ulysses", "James Joyce"));
+        journal.close();
+        try (RandomAccessFile f = new RandomAccessFile(log(), "rw")) {
+            f.seek(f.length() - 6); // inside the last record's author
+            f.write(f.read() ^ 0xFF);
+        }
+
+        open();
+        assertEquals(2, bm.count);
+        assertEquals("Emma", bm.getBook(1).getTitle());
+    }
+
+    @Test
+    void logsStringsLongerThanModifiedUtf8Allows() throws Exception {
+        StringBuilder title = new StringBuilder();
+        for (int i = 0; i < 30000; i++) title.append("ä€"); // 150,000 bytes of UTF-8
+        open();
+        bm.addBook(new Book(title.toString(), "Anonymous"));
+        bm.addBook(new Book("Emma", "Jane Austen"));
+        reopen();
+
+        assertEquals(2, bm.count);
+        assertEquals(title.toString(), bm.getBook(0).getTitle());
+        assertEquals("Emma", bm.getBook(1).getTitle());
+    }
+
+    @Test
+    void rejectsLogWithoutHeader() throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(log()))) {
+            out.writeInt(12);
+            out.write(new byte[16]);
+        }
+
+        assertThrows(IOException.class, this::open);
+    }
+
+    @Test
+    void rejectsCorruptSnapshot() throws Exception {
+        open();
+        seed();
+        journal.snapshot();
+        journal.close();
+        try (RandomAccessFile f = new RandomAccessFile(new File(dir, "catalog.snapshot"), "rw")) {
+            f.seek(f.length() / 2);
+            f.write(f.read() ^ 0xFF);
+        }
+
+        assertThrows(IOException.class, this::open);
+    }
+
+    @Test
+    void emptyFolderStartsEmpty() throws Exception {
+        open();
+        assertEquals(0, bm.count);
+        assertEquals(0, um.count);
+        assertNull(um.findUserById("s1"));
+        assertEquals(4, log().length());
+    }
+}
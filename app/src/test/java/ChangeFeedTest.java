@@ -0,0 +1,148 @@
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// ChangeFeed: backpressure from slow subscribers, ordering, replay, and waking idle subscribers.
+class ChangeFeedTest {
+
+    private static BookManager catalog(ChangeFeed feed) {
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        bm.feed = feed;
+        return bm;
+    }
+
+    @Test
+    void slowSubscriberHoldsBackPublishersWithoutLosingEvents() throws Exception {
+        ChangeFeed feed = new ChangeFeed(8);
+        BookManager bm = catalog(feed);
+        List<Long> seen = Collections.synchronizedList(new ArrayList<>());
+        List<String> lapped = Collections.synchronizedList(new ArrayList<>());
+        ChangeFeed.Subscription s = feed.subscribe("slow", (e, endOfBatch) -> {
+            // a publisher must never overwrite an event this subscriber has not handled
+            if (feed.cursor() - e.sequence >= feed.capacity()) lapped.add(e.toString());
+            seen.add(e.sequence);
+            Thread.sleep(1);
+        });
+
+        assertTimeoutPreemptively(Duration.ofSeconds(20), () -> {
+            Thread[] desks = new Thread[3];
+            for (int t = 0; t < desks.length; t++) {
+                int desk = t;
+                desks[t] = new Thread(() -> {
+                    for (int i = 0; i < 50; i++) bm.addBook(new Book("Title " + desk + "-" + i, "Author"));
+                });
+                desks[t].start();
+            }
+            for (Thread t : desks) t.join();
+            s.awaitCaughtUp();
+        });
+        s.close();
+
+        assertEquals(150, seen.size());
+        for (int i = 0; i < seen.size(); i++) assertEquals(i, (long) seen.get(i));
+        assertTrue(lapped.isEmpty(), lapped::toString);
+    }
+
+    @Test
+    void rosterLargerThanRingDoesNotWedgeSubscriberLookups() throws Exception {
+        ChangeFeed feed = new ChangeFeed(16);
+        UserManager um = new UserManager();
+        um.feed = feed;
+        List<String> found = Collections.synchronizedList(new ArrayList<>());
+        // handlers must not call into the managers (see ChangeFeed), but one that
+        // does anyway must not deadlock against a bulk add
+        ChangeFeed.Subscription s = feed.subscribe("lookups", (e, endOfBatch) -> {
+            User u = um.findUserById(e.userId);
+            if (u != null) found.add(u.getUserId());
+            Thread.sleep(1);
+        });
+        User[] roster = new User[100];
+        for (int i = 0; i < roster.length; i++) roster[i] = new Student("Student " + i, "s" + i);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(20), () -> {
+            um.addUsers(roster);
+            s.awaitCaughtUp();
+        });
+        s.close();
+
+        assertEquals(100, found.size());
+        assertEquals("s99", found.get(99));
+    }
+
+    @Test
+    void replaysFromAnOlderSequenceThenFollowsLiveEvents() throws Exception {
+        ChangeFeed feed = new ChangeFeed(16);
+        BookManager bm = catalog(feed);
+        for (int i = 0; i < 10; i++) bm.addBook(new Book("Title " + i, "Author"));
+
+        List<String> titles = Collections.synchronizedList(new ArrayList<>());
+        ChangeFeed.Subscription s = feed.subscribe("replay", 4, (e, endOfBatch) -> titles.add(e.title));
+        bm.addBook(new Book("Title 10", "Author"));
+        s.awaitCaughtUp();
+        s.close();
+
+        assertEquals(7, titles.size());
+        assertEquals("Title 4", titles.get(0));
+        assertEquals("Title 10", titles.get(6));
+        assertEquals(10, s.sequence());
+    }
+
+    @Test
+    void readRefusesEventsThatWereOverwritten() {
+        ChangeFeed feed = new ChangeFeed(8);
+        BookManager bm = catalog(feed);
+        for (int i = 0; i < 20; i++) bm.addBook(new Book("Title " + i, "Author"));
+
+        List<LibraryEvent> tail = feed.read(feed.oldest(), 100);
+        assertEquals(8, tail.size());
+        assertEquals("Title 12", tail.get(0).title);
+        assertThrows(IllegalArgumentException.class, () -> feed.read(3, 10));
+        assertThrows(IllegalArgumentException.class, () -> feed.subscribe("late", 3, (e, endOfBatch) -> { }));
+    }
+
+    @Test
+    void idleSubscriberIsWokenByPublish() throws Exception {
+        ChangeFeed feed = new ChangeFeed(8);
+        BookManager bm = catalog(feed);
+        CountDownLatch delivered = new CountDownLatch(1);
+        ChangeFeed.Subscription s = feed.subscribe("idle", (e, endOfBatch) -> delivered.countDown());
+        Thread.sleep(100); // long enough to have parked
+
+        long start = System.nanoTime();
+        bm.addBook(new Book("Title", "Author"));
+        // well under the one-second park timeout
+        assertTrue(delivered.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        s.close();
+    }
+
+    @Test
+    void failingHandlerSkipsTheEvent() throws Exception {
+        ChangeFeed feed = new ChangeFeed(8);
+        BookManager bm = catalog(feed);
+        List<String> titles = Collections.synchronizedList(new ArrayList<>());
+        ChangeFeed.Subscription s = feed.subscribe("flaky", (e, endOfBatch) -> {
+            if (e.title.equals("Bad")) throw new IllegalStateException("cannot handle " + e.title);
+            titles.add(e.title);
+        });
+        bm.addBook(new Book("Good", "Author"));
+        bm.addBook(new Book("Bad", "Author"));
+        bm.addBook(new Book("Also good", "Author"));
+        s.awaitCaughtUp();
+        s.close();
+
+        assertEquals(2, titles.size());
+        assertEquals("Also good", titles.get(1));
+    }
+}
@@ -0,0 +1,166 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Typo-tolerant search: the Levenshtein automaton, the word dictionary it
+// walks, and BookManager.fuzzySearch on top of them.
+class FuzzySearchTest {
+
+    // Distance of word from the automaton's query, capped at maxEdits + 1.
+    // Stops at a dead state, as TermDictionary does.
+    private static int automaton(String query, String word, int maxEdits) {
+        LevenshteinAutomaton a = new LevenshteinAutomaton(query, maxEdits);
+        int[] row = a.start();
+        for (int i = 0; i < word.length(); i++) {
+            row = a.step(row, i, word.charAt(i), new int[row.length]);
+            if (!a.canMatch(row)) return maxEdits + 1;
+        }
+        return a.distance(row);
+    }
+
+    private static int levenshtein(String a, String b) {
+        int[] prev = new int[b.length() + 1];
+        int[] cur = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) prev[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            cur[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(prev[j - 1] + cost, prev[j] + 1), cur[j - 1] + 1);
+            }
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[b.length()];
+    }
+
+    private static String randomWord(Random r, int maxLength) {
+        char[] w = new char[1 + r.nextInt(maxLength)];
+        for (int i = 0; i < w.length; i++) w[i] = (char) ('a' + r.nextInt(4)); // small alphabet: many near misses
+        return new String(w);
+    }
+
+    @Test
+    void automatonCountsEdits() {
+        assertEquals(0, automaton("potter", "potter", 1));
+        assertEquals(1, automaton("potter", "poter", 1));
+        assertEquals(1, automaton("potter", "pottery", 1));
+        assertEquals(1, automaton("potter", "putter", 1));
+        assertEquals(2, automaton("goblet", "gobelt", 2)); // a transposition is two edits
+        assertEquals(2, automaton("mockingbird", "mokingbrd", 2));
+        assertEquals(3, automaton("mockingbird", "mkngbird", 2)); // over budget
+        assertEquals(2, automaton("potter", "pot", 1));
+    }
+
+    @Test
+    void automatonAgreesWithEditDistance() {
+        Random r = new Random(42);
+        for (int n = 0; n < 20000; n++) {
+            String q = randomWord(r, 8);
+            String w = randomWord(r, 8);
+            int maxEdits = 1 + n % 2;
+            assertEquals(Math.min(levenshtein(q, w), maxEdits + 1), automaton(q, w, maxEdits), q + " / " + w);
+        }
+    }
+
+    @Test
+    void deadStateMeansNoExtensionMatches() {
+        LevenshteinAutomaton a = new LevenshteinAutomaton("harry", 1);
+        int[] row = a.start();
+        row = a.step(row, 0, 'x', new int[row.length]);
+        assertTrue(a.canMatch(row)); // "x" could still be a substitution
+        row = a.step(row, 1, 'y', new int[row.length]);
+        assertFalse(a.canMatch(row));
+    }
+
+    @Test
+    void dictionaryFindsEveryWordWithinBudget() {
+        Random r = new Random(7);
+        TermDictionary dict = new TermDictionary();
+        TreeMap<String, Integer> words = new TreeMap<>();
+        // enough words that most are merged into the sorted run, where shared prefixes are skipped
+        for (int id = 0; id < 3000; id++) {
+            String w = randomWord(r, 7);
+            words.putIfAbsent(w, id);
+            dict.add(w, id);
+        }
+
+        for (int n = 0; n < 200; n++) {
+            String q = randomWord(r, 7);
+            int maxEdits = 1 + n % 2;
+            List<String> expected = new ArrayList<>();
+            for (String w : words.keySet()) {
+                if (levenshtein(q, w) <= maxEdits) expected.add(w);
+            }
+            List<TermMatch> out = new ArrayList<>();
+            dict.collect(new LevenshteinAutomaton(q, maxEdits), false, out);
+            TreeMap<String, Integer> found = new TreeMap<>();
+            for (TermMatch m : out) {
+                found.put(m.term, m.distance);
+                assertEquals(levenshtein(q, m.term), m.distance, q + " / " + m.term);
+                assertEquals(words.get(m.term).intValue(), m.ids.get(0));
+            }
+            assertEquals(expected, new ArrayList<>(found.keySet()), q);
+        }
+    }
+
+    private static BookManager library() {
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        bm.addBook(new Book("Harry Potter and the Sorcerer's Stone", "J.K. Rowling"));
+        bm.addBook(new Book("Harry Potter and the Goblet of Fire", "J.K. Rowling"));
+        bm.addBook(new Book("To Kill a Mockingbird", "Harper Lee"));
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        bm.addBook(new Book("The Pottery Barn", "Ann Clay"));
+        return bm;
+    }
+
+    private static List<String> titles(List<Book> books) {
+        List<String> titles = new ArrayList<>();
+        for (Book b : books) titles.add(b.getTitle());
+        return titles;
+    }
+
+    @Test
+    void toleratesOneEditInMidLengthWords() {
+        BookManager bm = library();
+        assertEquals("Harry Potter and the Sorcerer's Stone", bm.fuzzySearch("poter", 10).get(0).getTitle());
+        assertEquals("Dune", bm.fuzzySearch("dunr", 10).get(0).getTitle());
+        assertTrue(bm.fuzzySearch("dn", 10).isEmpty()); // too short for a typo
+    }
+
+    @Test
+    void toleratesTwoEditsInLongWords() {
+        BookManager bm = library();
+        assertEquals(titles(bm.fuzzySearch("mockingbird", 10)), titles(bm.fuzzySearch("mokingbrd", 10)));
+        assertTrue(bm.fuzzySearch("mkngbird", 10).isEmpty());
+    }
+
+    @Test
+    void everyQueryWordMustMatch() {
+        BookManager bm = library();
+        List<String> both = titles(bm.fuzzySearch("harry poter", 10));
+        assertEquals(2, both.size());
+        assertEquals("Harry Potter and the Goblet of Fire", titles(bm.fuzzySearch("rowling goblet", 10)).get(0));
+        assertEquals(1, bm.fuzzySearch("rowlng goblt", 10).size()); // author and title word, each misspelt
+        assertTrue(bm.fuzzySearch("rowling gobelt", 10).isEmpty()); // two edits in a six-letter word
+        assertTrue(bm.fuzzySearch("harry herbert", 10).isEmpty());
+    }
+
+    @Test
+    void wordsSharingAPrefixRankByDistance() {
+        BookManager bm = library();
+        // "potter" is exact for both Harry Potter books; "pottery" is one edit away
+        List<String> found = titles(bm.fuzzySearch("potter", 10));
+        assertEquals(3, found.size());
+        assertEquals("The Pottery Barn", found.get(2));
+    }
+}
@@ -0,0 +1,101 @@
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+// LibraryAnalytics fed by a live ChangeFeed, as main wires it.
+class LibraryAnalyticsTest {
+
+    private static final int STUDENT = 0, TEACHER = 1, GUEST = 2;
+
+    @Test
+    void rosterLargerThanTheRingIsCounted() throws Exception {
+        ChangeFeed feed = new ChangeFeed(1 << 16);
+        UserManager um = new UserManager();
+        um.feed = feed;
+        LibraryAnalytics analytics = new LibraryAnalytics();
+        analytics.start(um, feed);
+        User[] roster = new User[70000];
+        for (int i = 0; i < roster.length; i++) {
+            roster[i] = i % 10 == 0 ? new Teacher("Teacher " + i, "t" + i) : new Student("Student " + i, "s" + i);
+        }
+
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            um.addUsers(roster);
+            analytics.catchUp();
+        });
+        analytics.close();
+
+        assertEquals(63000, analytics.users(STUDENT));
+        assertEquals(7000, analytics.users(TEACHER));
+        assertEquals(0, analytics.users(GUEST));
+    }
+
+    @Test
+    void countsLoansAndCheckoutsByUserType() throws Exception {
+        ChangeFeed feed = new ChangeFeed(1 << 10);
+        UserManager um = new UserManager();
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        um.feed = feed;
+        bm.feed = feed;
+        um.addUser(new Student("Ana", "s1"));
+        LibraryAnalytics analytics = new LibraryAnalytics();
+        analytics.start(um, feed); // s1 is counted by start, not from the feed
+        um.addUser(new Guest("Gil", "g1"));
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        bm.addBook(new Book("Emma", "Jane Austen"));
+
+        bm.borrowBook(um.findUserById("s1"), bm.getBook(0));
+        bm.borrowBook(um.findUserById("g1"), bm.getBook(1));
+        bm.returnBook(bm.getBook(1), um.findUserById("g1"), um);
+        analytics.catchUp();
+        analytics.close();
+
+        assertEquals(1, analytics.users(STUDENT));
+        assertEquals(1, analytics.users(GUEST));
+        assertEquals(1, analytics.loans(STUDENT));
+        assertEquals(0, analytics.loans(GUEST));
+        assertEquals(1, analytics.borrows(STUDENT, 1));
+        assertEquals(1, analytics.borrows(GUEST, 1));
+        assertEquals("Dune", analytics.topTitles(1, 1).get(0).key);
+    }
+
+    @Test
+    void reservationCarriesTheUserType() throws Exception {
+        ChangeFeed feed = new ChangeFeed(1 << 6);
+        UserManager um = new UserManager();
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        bm.feed = feed;
+        um.addUser(new Teacher("Ben", "t1"));
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        long from = feed.cursor() + 1;
+
+        bm.reserveBook(bm.getBook(0), um.findUserById("t1"));
+        LibraryEvent e = feed.read(from, 1).get(0);
+        assertEquals(LibraryEvent.Type.RESERVED, e.type);
+        assertEquals("t1", e.userId);
+        assertEquals(TEACHER, e.userType);
+    }
+
+    @Test
+    void unknownUserTypeIsNotCountedAsGuest() throws Exception {
+        ChangeFeed feed = new ChangeFeed(1 << 6);
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        LibraryAnalytics analytics = new LibraryAnalytics();
+        analytics.start(new UserManager(), feed);
+
+        feed.publish(LibraryEvent.Type.BORROWED, bm.getBook(0), "gone", -1, System.currentTimeMillis(), 0, 0);
+        analytics.catchUp();
+        analytics.close();
+
+        assertEquals(0, analytics.loans(GUEST));
+        assertEquals(0, analytics.borrows(GUEST, 1));
+        assertEquals("Dune", analytics.topTitles(1, 1).get(0).key); // still a checkout of the title
+    }
+}
@@ -0,0 +1,101 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// LibraryServer over real HTTP: parameter checks and saving on shutdown.
+class LibraryServerTest {
+
+    @TempDir
+    File dir;
+
+    private BookManager bm;
+    private UserManager um;
+    private CatalogJournal journal;
+    private LibraryServer server;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        bm = new BookManager();
+        bm.verbose = false;
+        bm.feed = new ChangeFeed(1 << 10);
+        um = new UserManager();
+        journal = CatalogJournal.open(dir, bm, um);
+        um.addUser(new Student("Ana", "s1"));
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        bm.addBook(new Book("Dune Messiah", "Frank Herbert"));
+        server = new LibraryServer(bm, um, journal, 0);
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (server != null) server.shutdown();
+    }
+
+    private int status;
+
+    private String call(String method, String pathAndQuery) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + pathAndQuery).openConnection();
+        c.setRequestMethod(method);
+        status = c.getResponseCode();
+        InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream();
+        try (Scanner s = new Scanner(in, StandardCharsets.UTF_8.name()).useDelimiter("\\A")) {
+            return s.hasNext() ? s.next() : "";
+        }
+    }
+
+    @Test
+    void searchWithoutRoomReturnsNothing() {
+        assertTrue(bm.searchBooksByTitle("dune", 0).isEmpty());
+        assertTrue(bm.searchBooksByTitle("dune", -1).isEmpty());
+        assertEquals(1, bm.searchBooksByTitle("dune", 1).size());
+    }
+
+    @Test
+    void limitBelowOneIsRejected() throws Exception {
+        String[] requests = {
+                "/search?title=dune&limit=0",
+                "/find?q=dune&limit=-1",
+                "/books?limit=0",
+                "/events?limit=0",
+        };
+        for (String request : requests) {
+            String body = call("GET", request);
+            assertEquals(400, status, request);
+            assertTrue(body.contains("limit must be at least 1"), body);
+        }
+
+        String body = call("GET", "/search?title=dune&limit=1");
+        assertEquals(200, status);
+        assertTrue(body.contains("\"Dune\"") && !body.contains("Messiah"), body);
+    }
+
+    @Test
+    void shutdownSavesSnapshot() throws Exception {
+        call("POST", "/borrow?user=s1&title=Dune");
+        assertEquals(200, status);
+
+        server.shutdown();
+        server = null;
+        assertEquals(4, new File(dir, "catalog.wal").length()); // the snapshot took in the log
+
+        bm = new BookManager();
+        bm.verbose = false;
+        um = new UserManager();
+        CatalogJournal.open(dir, bm, um).close();
+        assertEquals("s1", bm.getBook(0).getBorrowerId());
+        assertEquals(1, um.findUserById("s1").getCurrentlyBorrowed());
+    }
+}
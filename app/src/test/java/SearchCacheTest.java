@@ -0,0 +1,99 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+// SearchCache admission and eviction, and how BookManager keeps its entries valid.
+class SearchCacheTest {
+
+    private static SearchCache.Entry entry(String query) {
+        return new SearchCache.Entry(query, new int[0], -1, 0);
+    }
+
+    private static void ask(SearchCache cache, String query, int times) {
+        for (int i = 0; i < times; i++) cache.get(query);
+    }
+
+    @Test
+    void keepsOneEntryPerQuery() {
+        SearchCache cache = new SearchCache(1000);
+        assertEquals(1024, cache.capacity());
+        SearchCache.Entry first = entry("dune");
+        SearchCache.Entry second = entry("dune");
+        cache.put(first);
+        cache.put(second);
+
+        assertSame(second, cache.get("dune"));
+        assertNull(cache.get("emma"));
+        cache.clear();
+        assertNull(cache.get("dune"));
+    }
+
+    @Test
+    void fullSetAdmitsOnlyMorePopularQueries() {
+        SearchCache cache = new SearchCache(4); // a single set: every query competes
+        String[] hot = { "dune", "emma", "ulysses", "beloved" };
+        for (String q : hot) cache.put(entry(q));
+        ask(cache, "dune", 5);
+        ask(cache, "emma", 5);
+        ask(cache, "ulysses", 5);
+        ask(cache, "beloved", 1);
+
+        cache.put(entry("one-off"));
+        assertNull(cache.get("one-off"));
+        for (String q : hot) assertNotNull(cache.get(q), q);
+
+        ask(cache, "rising", 10);
+        cache.put(entry("rising"));
+        assertNotNull(cache.get("rising"));
+        assertNull(cache.get("beloved")); // the least popular made room
+        assertNotNull(cache.get("dune"));
+    }
+
+    @Test
+    void entrySurvivesUnrelatedBooks() {
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        bm.searchBooksByTitle("dune");
+        SearchCache.Entry before = bm.searchCache.get("dune");
+
+        bm.addBook(new Book("Emma", "Jane Austen"));
+        assertEquals(1, bm.searchBooksByTitle("Dune").size());
+        SearchCache.Entry after = bm.searchCache.get("dune");
+        assertSame(before.ranked, after.ranked); // revalidated, not recomputed
+        assertEquals(2, after.upTo);
+    }
+
+    @Test
+    void matchingBookInvalidatesEntry() {
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        bm.addBook(new Book("Dune Messiah", "Frank Herbert"));
+        bm.searchBooksByTitle("dune");
+        SearchCache.Entry before = bm.searchCache.get("dune");
+
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        List<Book> found = bm.searchBooksByTitle("dune");
+        assertEquals(2, found.size());
+        assertEquals("Dune", found.get(0).getTitle()); // exact title ranks first
+        assertNotSame(before.ranked, bm.searchCache.get("dune").ranked);
+    }
+
+    @Test
+    void emptyResultIsCachedUntilAMatchArrives() {
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        bm.addBook(new Book("Emma", "Jane Austen"));
+        assertNull(bm.findBookByTitle("dune"));
+        assertEquals(-1, bm.searchCache.get("dune").first);
+
+        bm.addBook(new Book("Children of Dune", "Frank Herbert"));
+        assertEquals("Children of Dune", bm.findBookByTitle("DUNE").getTitle());
+    }
+}
@@ -0,0 +1,132 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// TimingWheel on its own, and the due dates BookManager keeps on it.
+class TimingWheelTest {
+
+    private static Deadline at(long dueAt) {
+        return new Deadline(0, "u", dueAt, false);
+    }
+
+    @Test
+    void firesEachLevelOnItsTick() {
+        TimingWheel wheel = new TimingWheel(1);
+        // level 0, 1, 2 and 3, and one past the top level that is parked and re-placed
+        long[] due = { 5, 70, 5000, 300000, 20000000 };
+        List<Deadline> pending = new ArrayList<>();
+        for (long t : due) {
+            Deadline d = at(t);
+            wheel.schedule(d, 0);
+            pending.add(d);
+        }
+        assertEquals(due.length, wheel.size());
+
+        for (int i = 0; i < due.length; i++) {
+            assertEquals(Collections.emptyList(), wheel.advance(due[i] - 1), "early at " + due[i]);
+            assertEquals(Collections.singletonList(pending.get(i)), wheel.advance(due[i]));
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void roundsPartialTicksUp() {
+        TimingWheel wheel = new TimingWheel(1000);
+        Deadline d = at(2500);
+        wheel.schedule(d, 0);
+
+        assertTrue(wheel.advance(2999).isEmpty());
+        assertEquals(Collections.singletonList(d), wheel.advance(3000));
+    }
+
+    @Test
+    void cancelledEntriesNeverFire() {
+        TimingWheel wheel = new TimingWheel(1);
+        Deadline kept = at(100);
+        Deadline dropped = at(100);
+        wheel.schedule(kept, 0);
+        wheel.schedule(dropped, 0);
+
+        wheel.cancel(dropped);
+        wheel.cancel(dropped); // a second cancel is a no-op
+        assertEquals(1, wheel.size());
+        assertEquals(Collections.singletonList(kept), wheel.advance(1000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void rescheduledEntryFiresAtItsNewTime() {
+        TimingWheel wheel = new TimingWheel(1);
+        Deadline d = at(5000);
+        wheel.schedule(d, 0);
+        wheel.advance(4000);
+
+        wheel.cancel(d);
+        d.dueAt = 9000;
+        wheel.schedule(d, 4000);
+        assertTrue(wheel.advance(8999).isEmpty());
+        assertEquals(Collections.singletonList(d), wheel.advance(9000));
+    }
+
+    @Test
+    void pastDueFiresOnNextAdvance() {
+        TimingWheel wheel = new TimingWheel(1);
+        wheel.advance(1000);
+        Deadline d = at(10);
+        wheel.schedule(d, 1000);
+
+        assertEquals(Collections.singletonList(d), wheel.advance(1000));
+    }
+
+    @Test
+    void overdueLoanIsFlagged() throws Exception {
+        long[] now = { 1000 * 60 * 1000 }; // on a tick boundary, so deadlines fire exactly on time
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        bm.clock = () -> now[0];
+        UserManager um = new UserManager();
+        um.addUser(new Student("Ana", "s1"));
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        Book dune = bm.getBook(0);
+        bm.borrowBook(um.findUserById("s1"), dune);
+
+        now[0] += 14 * BookManager.DAY_MILLIS - 60 * 1000;
+        assertEquals(0, bm.processDeadlines(um));
+        assertFalse(dune.isOverdue());
+
+        now[0] += 60 * 1000;
+        assertEquals(1, bm.processDeadlines(um));
+        assertTrue(dune.isOverdue());
+        assertEquals(Collections.singletonList(dune), bm.getOverdueBooks());
+    }
+
+    @Test
+    void lapsedHoldReturnsBookToShelf() throws Exception {
+        long[] now = { 1000 * 60 * 1000 }; // on a tick boundary, so deadlines fire exactly on time
+        BookManager bm = new BookManager();
+        bm.verbose = false;
+        bm.clock = () -> now[0];
+        UserManager um = new UserManager();
+        um.addUser(new Student("Ana", "s1"));
+        um.addUser(new Guest("Gil", "g1"));
+        bm.addBook(new Book("Dune", "Frank Herbert"));
+        Book dune = bm.getBook(0);
+        bm.borrowBook(um.findUserById("s1"), dune);
+        bm.reserveBook(dune, um.findUserById("g1"));
+        bm.returnBook(dune, um.findUserById("s1"), um);
+        assertTrue(dune.isOnHold());
+        assertEquals("g1", dune.getBorrowerId());
+
+        now[0] += BookManager.HOLD_DAYS * BookManager.DAY_MILLIS;
+        assertEquals(1, bm.processDeadlines(um));
+        assertTrue(dune.isAvailable());
+        assertEquals(0, um.findUserById("g1").getCurrentlyBorrowed());
+        assertTrue(bm.getOverdueBooks().isEmpty());
+    }
+}
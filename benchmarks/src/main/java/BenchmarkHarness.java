@@ -0,0 +1,220 @@
+import booktrack.bench.CatalogHarness;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Lives in the unnamed package so it can reach BookManager/UserManager; see CatalogHarness.
+public class BenchmarkHarness implements CatalogHarness {
+    // Listings are rendered into this; measure the formatting, not the console.
+    private static final Writer DISCARD = new Writer() {
+        @Override public void write(char[] cbuf, int off, int len) { }
+        @Override public Writer append(CharSequence csq) { return this; }
+        @Override public void flush() { }
+        @Override public void close() { }
+    };
+
+    private final BookManager bm = new BookManager();
+    private final UserManager um = new UserManager();
+    private final LibraryMetrics metrics = new LibraryMetrics();
+    private final ChangeFeed feed = new ChangeFeed(1 << 16);
+    private long feedBatches;
+    private LibraryAnalytics analytics;
+    private final LibraryEvent event = new LibraryEvent();
+    private User[] users;
+    private BranchNetwork network;
+
+    @Override
+    public void build(String[] titles, String[] authors, int userCount) {
+        bm.verbose = false;
+        // instrumented as in the application, so every benchmark includes the metrics
+        // and change-feed costs
+        bm.metrics = metrics;
+        um.metrics = metrics;
+        bm.feed = feed;
+        um.feed = feed;
+        for (int i = 0; i < titles.length; i++) {
+            bm.addBook(new Book(titles[i], authors[i]));
+        }
+        users = new User[userCount];
+        for (int i = 0; i < userCount; i++) {
+            // Teachers have the highest borrow limit, which keeps the limit check out of the way
+            users[i] = new Teacher("User " + i, "u" + i);
+        }
+        try {
+            um.addUsers(users);
+        } catch (InvalidUserInputException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean searchFirst(String query) {
+        try {
+            return bm.searchBookByTitle(query) != null;
+        } catch (BookNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public int searchAll(String query) {
+        return bm.searchBooksByTitle(query).size();
+    }
+
+    @Override
+    public int searchFuzzy(String query) {
+        return bm.fuzzySearch(query, 10).size();
+    }
+
+    @Override
+    public boolean findUser(String userId) {
+        return um.findUserById(userId) != null;
+    }
+
+    @Override
+    public void borrowAndReturn(int user, int book) {
+        Book b = bm.getBook(book);
+        User u = users[user];
+        bm.borrowBook(u, b);
+        if (u.getUserId().equals(b.getBorrowerId())) {
+            bm.returnBook(b, u, um);
+        }
+    }
+
+    @Override
+    public void returnWithReservations(int book, int firstUser, int queued) {
+        Book b = bm.getBook(book);
+        bm.borrowBook(users[firstUser], b);
+        for (int i = 1; i <= queued; i++) {
+            bm.reserveBook(b, users[(firstUser + i) % users.length]);
+        }
+        // each return hands the book to the next user in line
+        for (int i = 0; i <= queued && !b.isAvailable(); i++) {
+            bm.returnBook(b, um.findUserById(b.getBorrowerId()), um);
+        }
+    }
+
+    @Override
+    public void recordLatency(long nanos) {
+        metrics.recordNanos(LibraryMetrics.Op.BORROW, ResultCode.OK, nanos);
+    }
+
+    @Override
+    public void buildBranches(String[] titles, String[] authors, int userCount, int branches) {
+        String[] names = new String[branches];
+        for (int i = 0; i < branches; i++) names[i] = "Branch " + i;
+        network = new BranchNetwork(names);
+        network.setVerbose(false);
+        network.setMetrics(metrics);
+        for (int i = 0; i < titles.length; i++) {
+            network.addBook(i % branches, new Book(titles[i], authors[i]));
+        }
+        users = new User[userCount];
+        try {
+            for (int i = 0; i < userCount; i++) {
+                users[i] = new Teacher("User " + i, "u" + i);
+                network.addUser(users[i]);
+            }
+        } catch (InvalidUserInputException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int searchBranches(String query) {
+        return network.searchBooksByTitle(query, 10).size();
+    }
+
+    @Override
+    public int searchBranchesFuzzy(String query) {
+        return network.fuzzySearch(query, 10).size();
+    }
+
+    @Override
+    public void borrowAndReturnAtBranch(int user, int book) {
+        int branches = network.size();
+        Book b = network.branch(book % branches).getBook(book / branches);
+        User u = users[user];
+        network.borrowBook(u, b);
+        if (u.getUserId().equals(b.getBorrowerId())) {
+            network.returnBook(b, u);
+        }
+    }
+
+    @Override
+    public void publishEvent(int book) {
+        Book b = bm.getBook(book);
+        feed.publish(LibraryEvent.Type.BORROWED, b, "u0", 1, 0, 0, 0);
+    }
+
+    @Override
+    public void subscribeToFeed() {
+        feed.subscribe("benchmark", (e, endOfBatch) -> {
+            if (endOfBatch) feedBatches++;
+        });
+    }
+
+    @Override
+    public void analyzeBorrow(int book, boolean endOfBatch) {
+        if (analytics == null) analytics = new LibraryAnalytics();
+        Book b = bm.getBook(book);
+        event.type = LibraryEvent.Type.BORROWED;
+        event.time = analytics.clock.getAsLong();
+        event.bookId = book;
+        event.title = b.getTitle();
+        event.author = b.getAuthor();
+        event.userId = users[0].getUserId();
+        event.userType = LibraryMetrics.userType(users[0]);
+        analytics.onEvent(event, endOfBatch);
+    }
+
+    @Override
+    public int topTitles(int n) {
+        return analytics.topTitles(n, 1).size();
+    }
+
+    @Override
+    public void saveCatalog(String[] titles, String[] authors, String dir, boolean image) {
+        BookManager saved = new BookManager();
+        saved.verbose = false;
+        try {
+            CatalogJournal journal = CatalogJournal.open(new File(dir), saved, new UserManager());
+            List<Book> batch = new ArrayList<>(titles.length);
+            for (int i = 0; i < titles.length; i++) batch.add(new Book(titles[i], authors[i]));
+            saved.addBooks(batch);
+            if (image) journal.buildImage();
+            else journal.snapshot();
+            journal.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public int startAndSearch(String dir, String query) {
+        BookManager started = new BookManager();
+        started.verbose = false;
+        try {
+            CatalogJournal journal = CatalogJournal.open(new File(dir), started, new UserManager());
+            int hits = started.fuzzySearch(query, 10).size();
+            journal.close();
+            return hits;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public int listBooks() {
+        try {
+            bm.writeBookList(DISCARD, bm.streamBooks());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bm.count;
+    }
+}
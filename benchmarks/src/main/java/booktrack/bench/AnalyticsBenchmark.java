@@ -0,0 +1,60 @@
+package booktrack.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LibraryAnalytics: what its feed subscriber spends per borrow (sketch and
+ * top-k updates, rankings published once per 64-event batch), and what a
+ * "top 100 titles this month" query costs, over Zipf-skewed borrows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AnalyticsBenchmark {
+
+    @Param({"100000"})
+    public int books;
+
+    private CatalogHarness harness;
+    private int[] borrows;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticCatalog catalog = new SyntheticCatalog(books, 42);
+        harness = CatalogHarness.create();
+        harness.build(catalog.titles, catalog.authors, 1);
+        borrows = catalog.popularBooks(1 << 16, 7);
+        // a month's worth of history for the queries
+        for (int i = 0; i < 1000000; i++) {
+            harness.analyzeBorrow(borrows[i & (borrows.length - 1)], (i & 63) == 63);
+        }
+    }
+
+    @Benchmark
+    public void update() {
+        int i = next++;
+        harness.analyzeBorrow(borrows[i & (borrows.length - 1)], (i & 63) == 63);
+    }
+
+    @Benchmark
+    public int topTitles() {
+        return harness.topTitles(100);
+    }
+}
@@ -0,0 +1,80 @@
+package booktrack.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The same catalog split over 1 or more branches (BranchNetwork): searches fan
+ * out to every branch in parallel, circulation only touches the book's branch.
+ * Compare {@code branches=1} with the others, on a machine with as many cores.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class BranchBenchmark {
+    private static final int USERS = 1024;
+
+    @Param({"1000000"})
+    public int books;
+
+    @Param({"1", "4"})
+    public int branches;
+
+    private CatalogHarness harness;
+    private String[] queries;
+    private int[] popular;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticCatalog catalog = new SyntheticCatalog(books, 42);
+        harness = CatalogHarness.create();
+        harness.buildBranches(catalog.titles, catalog.authors, USERS, branches);
+        queries = catalog.queries(4096, 7);
+        popular = catalog.popularBooks(4096, 3);
+    }
+
+    @State(Scope.Thread)
+    public static class Desk {
+        int user;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(BranchBenchmark bench) {
+            user = bench.threads.getAndIncrement() % USERS;
+        }
+    }
+
+    @Benchmark
+    public int searchRanked(Desk desk) {
+        return harness.searchBranches(queries[desk.next++ & (queries.length - 1)]);
+    }
+
+    @Benchmark
+    public int searchFuzzy(Desk desk) {
+        return harness.searchBranchesFuzzy(queries[desk.next++ & (queries.length - 1)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void borrowReturn(Desk desk) {
+        harness.borrowAndReturnAtBranch(desk.user, popular[desk.next++ & (popular.length - 1)]);
+    }
+}
@@ -0,0 +1,93 @@
+package booktrack.bench;
+
+/**
+ * Drives the BookTrack classes from the benchmarks.
+ *
+ * <p>BookTrack lives in the unnamed package, which named packages (and JMH's
+ * generated code) cannot reference. The implementation, {@code BenchmarkHarness},
+ * therefore sits in the unnamed package too and is looked up once, reflectively,
+ * during setup; the measured calls are plain interface calls.
+ */
+public interface CatalogHarness {
+
+    /** Loads the given catalog and registers {@code users} users with IDs {@code "u0"..}. */
+    void build(String[] titles, String[] authors, int users);
+
+    /** {@code BookManager.searchBookByTitle}; returns false when nothing matched. */
+    boolean searchFirst(String query);
+
+    /** {@code BookManager.searchBooksByTitle}; returns the number of matches. */
+    int searchAll(String query);
+
+    /** {@code BookManager.fuzzySearch} for the top 10; returns the number of hits. */
+    int searchFuzzy(String query);
+
+    /** {@code UserManager.findUserById}; returns false when the ID is unknown. */
+    boolean findUser(String userId);
+
+    /** Borrows and immediately returns one book. */
+    void borrowAndReturn(int user, int book);
+
+    /**
+     * Lends {@code book} to {@code firstUser}, queues the next {@code queued} users
+     * behind them, then returns it down the line until the queue is drained.
+     */
+    void returnWithReservations(int book, int firstUser, int queued);
+
+    /** Records one borrow latency sample and outcome, as every instrumented call does. */
+    void recordLatency(long nanos);
+
+    /** Publishes one BORROWED event for {@code book} to the change feed, as a borrow does. */
+    void publishEvent(int book);
+
+    /** Attaches a change-feed subscriber that counts events and does its work once per batch. */
+    void subscribeToFeed();
+
+    /**
+     * Hands {@code LibraryAnalytics} a BORROWED event for {@code book}, as its feed
+     * subscriber does; {@code endOfBatch} also publishes the top-k rankings.
+     */
+    void analyzeBorrow(int book, boolean endOfBatch);
+
+    /** The {@code n} most borrowed titles this month from {@code LibraryAnalytics}; returns how many. */
+    int topTitles(int n);
+
+    /** Renders the full book list as menu option 8 does (BookManager.writeBookList); returns rows written. */
+    int listBooks();
+
+    /**
+     * Loads the catalog into a {@code BranchNetwork}, book {@code i} at branch
+     * {@code i % branches}, and registers {@code users} users as {@link #build} does.
+     */
+    void buildBranches(String[] titles, String[] authors, int users, int branches);
+
+    /** {@code BranchNetwork.searchBooksByTitle} for the top 10; returns the number of matches. */
+    int searchBranches(String query);
+
+    /** {@code BranchNetwork.fuzzySearch} for the top 10; returns the number of hits. */
+    int searchBranchesFuzzy(String query);
+
+    /** Borrows and immediately returns one book through the branch network. */
+    void borrowAndReturnAtBranch(int user, int book);
+
+    /**
+     * Saves the catalog to a fresh data folder {@code dir}, as {@code CatalogJournal}
+     * does; with {@code image} the books go into a {@code CatalogImage} as
+     * {@code --build-image} writes it, otherwise into a plain snapshot.
+     */
+    void saveCatalog(String[] titles, String[] authors, String dir, boolean image);
+
+    /**
+     * Starts from a folder written by {@link #saveCatalog}, as {@code main} does, and
+     * answers one typo-tolerant search; returns the number of hits.
+     */
+    int startAndSearch(String dir, String query);
+
+    static CatalogHarness create() {
+        try {
+            return (CatalogHarness) Class.forName("BenchmarkHarness").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkHarness is missing from the classpath", e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package booktrack.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a circulation call pays to publish its change to the ChangeFeed, with
+ * no subscriber (the ring just wraps) or with one that keeps up in batches, so
+ * its position gates the publishers. The threaded variant shows what
+ * contention on the claim cursor adds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChangeFeedBenchmark {
+
+    @Param({"false", "true"})
+    public boolean subscribed;
+
+    private CatalogHarness harness;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticCatalog catalog = new SyntheticCatalog(1024, 42);
+        harness = CatalogHarness.create();
+        harness.build(catalog.titles, catalog.authors, 1);
+        if (subscribed) harness.subscribeToFeed();
+    }
+
+    @State(Scope.Thread)
+    public static class Desk {
+        int next;
+    }
+
+    @Benchmark
+    public void publish(Desk desk) {
+        harness.publishEvent(desk.next++ & 1023);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void publishContended(Desk desk) {
+        harness.publishEvent(desk.next++ & 1023);
+    }
+}
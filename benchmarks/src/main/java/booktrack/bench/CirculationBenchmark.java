@@ -0,0 +1,71 @@
+package booktrack.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Borrow/return with Zipf-skewed book popularity, and the reservation hand-off
+ * loop in BookManager.returnBook. Run with {@code -t N} to measure contention.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class CirculationBenchmark {
+    private static final int USERS = 1024;
+
+    @Param({"10000", "1000000"})
+    public int books;
+
+    @Param({"1", "8"})
+    public int queueDepth;
+
+    private CatalogHarness harness;
+    private int[] popular;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticCatalog catalog = new SyntheticCatalog(books, 42);
+        harness = CatalogHarness.create();
+        harness.build(catalog.titles, catalog.authors, USERS);
+        popular = catalog.popularBooks(4096, 3);
+    }
+
+    @State(Scope.Thread)
+    public static class Desk {
+        int user;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(CirculationBenchmark bench) {
+            // each benchmark thread acts as its own front desk with its own patron
+            user = bench.threads.getAndIncrement() % USERS;
+        }
+    }
+
+    @Benchmark
+    public void borrowReturn(Desk desk) {
+        harness.borrowAndReturn(desk.user, popular[desk.next++ & (popular.length - 1)]);
+    }
+
+    @Benchmark
+    public void returnWithReservations(Desk desk) {
+        harness.returnWithReservations(popular[desk.next++ & (popular.length - 1)], desk.user, queueDepth);
+    }
+}
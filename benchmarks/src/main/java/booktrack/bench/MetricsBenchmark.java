@@ -0,0 +1,62 @@
+package booktrack.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of the instrumentation (budget: 50 ns). {@code bookkeeping} is
+ * the histogram and counter update alone; {@code timedCall} adds the two
+ * System.nanoTime reads around an instrumented call, which depend on the
+ * platform clock source. The threaded variant shows what contention adds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private CatalogHarness harness;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        harness = CatalogHarness.create();
+        harness.build(new String[0], new String[0], 1);
+    }
+
+    @State(Scope.Thread)
+    public static class Sample {
+        long next = 1000;
+    }
+
+    @Benchmark
+    public void bookkeeping(Sample sample) {
+        // spread samples over a few buckets, as real latencies are
+        harness.recordLatency(sample.next++ & 0xFFFF);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void bookkeepingContended(Sample sample) {
+        harness.recordLatency(sample.next++ & 0xFFFF);
+    }
+
+    @Benchmark
+    public void timedCall() {
+        long start = System.nanoTime();
+        harness.recordLatency(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,92 @@
+package booktrack.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Title search: first-match lookup used by borrow/return/reserve, and the ranked listing.
+ * Queries are Zipf-skewed, so most are answered from BookManager's search cache.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int books;
+
+    private CatalogHarness harness;
+    private String[] queries;
+    private String[] misses;
+    private String[] typos;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticCatalog catalog = new SyntheticCatalog(books, 42);
+        harness = CatalogHarness.create();
+        harness.build(catalog.titles, catalog.authors, 1);
+        queries = catalog.queries(4096, 7);
+        // a handful of recurring queries that match nothing, like common typos
+        misses = new String[64];
+        for (int i = 0; i < misses.length; i++) misses[i] = "zzq missing title " + i;
+        typos = new String[queries.length];
+        Random random = new Random(13);
+        for (int i = 0; i < queries.length; i++) typos[i] = misspell(queries[i], random);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public boolean searchFirst(Cursor cursor) {
+        return harness.searchFirst(queries[cursor.next++ & (queries.length - 1)]);
+    }
+
+    /** Not-found path: served from the cache of empty results, with a stackless exception. */
+    @Benchmark
+    public boolean searchMissing(Cursor cursor) {
+        return harness.searchFirst(misses[cursor.next++ & (misses.length - 1)]);
+    }
+
+    /** Typo-tolerant title/author search over the same queries with one letter changed per long word. */
+    @Benchmark
+    public int searchFuzzy(Cursor cursor) {
+        return harness.searchFuzzy(typos[cursor.next++ & (typos.length - 1)]);
+    }
+
+    @Benchmark
+    public int searchRanked(Cursor cursor) {
+        return harness.searchAll(queries[cursor.next++ & (queries.length - 1)]);
+    }
+
+    private static String misspell(String query, Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : query.split(" ")) {
+            if (sb.length() > 0) sb.append(' ');
+            if (word.length() >= 5) {
+                int at = 1 + random.nextInt(word.length() - 2);
+                word = word.substring(0, at) + (char) ('a' + random.nextInt(26)) + word.substring(at + 1);
+            }
+            sb.append(word);
+        }
+        return sb.toString();
+    }
+}
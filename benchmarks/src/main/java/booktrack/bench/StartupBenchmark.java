@@ -0,0 +1,78 @@
+package booktrack.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from an empty BookManager to the first typo-tolerant search answered, starting
+ * from a saved data folder: a snapshot holding every book, which re-adds them and
+ * rebuilds the indexes, or a catalog image, which is mapped and read as needed.
+ * The files stay in the page cache between iterations, as they do on a warm restart.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int books;
+
+    private CatalogHarness harness;
+    private File snapshotDir;
+    private File imageDir;
+    private String query;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticCatalog catalog = new SyntheticCatalog(books, 42);
+        harness = CatalogHarness.create();
+        snapshotDir = Files.createTempDirectory("booktrack-snapshot").toFile();
+        imageDir = Files.createTempDirectory("booktrack-image").toFile();
+        harness.saveCatalog(catalog.titles, catalog.authors, snapshotDir.getPath(), false);
+        harness.saveCatalog(catalog.titles, catalog.authors, imageDir.getPath(), true);
+        query = catalog.queries(1, 7)[0];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        delete(snapshotDir);
+        delete(imageDir);
+    }
+
+    @Benchmark
+    public int startFromSnapshot() {
+        return harness.startAndSearch(snapshotDir.getPath(), query);
+    }
+
+    @Benchmark
+    public int startFromImage() {
+        return harness.startAndSearch(imageDir.getPath(), query);
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,100 @@
+package booktrack.bench;
+
+import java.util.Random;
+
+/**
+ * Deterministic synthetic catalog: titles built from a fixed vocabulary, a
+ * bounded author pool, and Zipf-distributed popularity for picking which
+ * books (and which title words) a workload touches.
+ */
+public final class SyntheticCatalog {
+    private static final String[] WORDS = {
+        "the", "of", "and", "history", "secret", "garden", "night", "river", "war", "peace",
+        "harry", "potter", "stone", "fire", "glass", "city", "queen", "king", "shadow", "light",
+        "habits", "atomic", "code", "clean", "java", "python", "art", "science", "mind", "ocean",
+        "brief", "time", "lost", "found", "winter", "summer", "house", "road", "journey", "dream",
+        "empire", "island", "storm", "silent", "patient", "golden", "iron", "wild", "heart", "star"
+    };
+
+    public final String[] titles;
+    public final String[] authors;
+    private final double[] cdf;
+
+    public SyntheticCatalog(int size, long seed) {
+        this(size, seed, 1.0);
+    }
+
+    public SyntheticCatalog(int size, long seed, double zipfExponent) {
+        Random random = new Random(seed);
+        titles = new String[size];
+        authors = new String[size];
+        int authorPool = Math.max(1, size / 20);
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < size; i++) {
+            sb.setLength(0);
+            int words = 2 + random.nextInt(5);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) sb.append(' ');
+                String word = WORDS[random.nextInt(WORDS.length)];
+                sb.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+            }
+            // keep titles distinct so every book is addressable
+            sb.append(" Vol. ").append(i);
+            titles[i] = sb.toString();
+            authors[i] = "Author " + random.nextInt(authorPool);
+        }
+
+        cdf = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += 1.0 / Math.pow(i + 1, zipfExponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < size; i++) cdf[i] /= sum;
+    }
+
+    /** Book index drawn from the Zipf popularity distribution (index 0 is the most popular). */
+    public int popularBook(Random random) {
+        double u = random.nextDouble();
+        int lo = 0;
+        int hi = cdf.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cdf[mid] < u) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /** {@code count} popular book indexes, precomputed so sampling stays out of the measurement. */
+    public int[] popularBooks(int count, long seed) {
+        Random random = new Random(seed);
+        int[] picks = new int[count];
+        for (int i = 0; i < count; i++) picks[i] = popularBook(random);
+        return picks;
+    }
+
+    /**
+     * Search strings as a desk would type them: a word or two from a popular
+     * title, in mixed case, plus a share of queries that match nothing.
+     */
+    public String[] queries(int count, long seed) {
+        Random random = new Random(seed);
+        String[] queries = new String[count];
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(10) == 0) {
+                queries[i] = "no such title " + i;
+                continue;
+            }
+            String[] words = titles[popularBook(random)].split(" ");
+            int from = random.nextInt(Math.max(1, words.length - 2));
+            int len = 1 + random.nextInt(2);
+            StringBuilder sb = new StringBuilder();
+            for (int w = from; w < Math.min(words.length, from + len); w++) {
+                if (sb.length() > 0) sb.append(' ');
+                sb.append(words[w]);
+            }
+            queries[i] = random.nextBoolean() ? sb.toString().toLowerCase() : sb.toString();
+        }
+        return queries;
+    }
+}
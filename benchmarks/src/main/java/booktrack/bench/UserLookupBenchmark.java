@@ -0,0 +1,62 @@
+package booktrack.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** UserManager.findUserById, which every circulation operation goes through. */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class UserLookupBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    private CatalogHarness harness;
+    private String[] hits;
+    private String[] misses;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        harness = CatalogHarness.create();
+        harness.build(new String[0], new String[0], users);
+        Random random = new Random(11);
+        hits = new String[4096];
+        misses = new String[4096];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = "u" + random.nextInt(users);
+            misses[i] = "x" + random.nextInt(users);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public boolean findExisting(Cursor cursor) {
+        return harness.findUser(hits[cursor.next++ & (hits.length - 1)]);
+    }
+
+    @Benchmark
+    public boolean findMissing(Cursor cursor) {
+        return harness.findUser(misses[cursor.next++ & (misses.length - 1)]);
+    }
+}